@@ -1,57 +1,465 @@
 package com.rinke.solutions.io;
 
-import static com.rinke.solutions.io.Result.res;
-import static com.rinke.solutions.io.Result.Code.DONE;
-import static com.rinke.solutions.io.Result.Code.FULL;
-import static com.rinke.solutions.io.Result.Code.MORE;
-import static com.rinke.solutions.io.Result.Code.OK;
-
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
 
+/**
+ * command line interface. Compresses or decompresses single files, stdin /
+ * stdout or whole directory trees, the latter on a pool of worker threads.
+ * @author Stefan Rinke
+ */
 public class HeatShrink {
+
+	static final String SUFFIX = ".hs";
+	private static final int IO_BUFFER_SIZE = 1 << 16;
+
+	@Option(name = "-e", aliases = "--encode", forbids = "-d", usage = "compress")
+	boolean encode;
+
+	@Option(name = "-d", aliases = "--decode", forbids = "-e", usage = "decompress")
+	boolean decode;
+
+	@Option(name = "-w", aliases = "--window", metaVar = "BITS", usage = "window size in bits")
+	int windowSize = 10;
+
+	@Option(name = "-l", aliases = "--lookahead", metaVar = "BITS", usage = "lookahead size in bits")
+	int lookAhead = 5;
+
+	@Option(name = "-x", aliases = "--extended", usage = "extended format, windows up to 24 bits")
+	boolean extended;
+
+	@Option(name = "-s", aliases = "--search", metaVar = "PRESET", usage = "search limits: FASTEST, FAST, BALANCED or BEST")
+	HeatShrinkEncoder.SearchPreset searchPreset;
+
+	@Option(name = "-b", aliases = "--buffer", metaVar = "BYTES", usage = "decoder input buffer size")
+	int bufferSize = 1024;
+
+	@Option(name = "-f", aliases = "--framed", usage = "framed stream, incompressible blocks are stored")
+	boolean framed;
+
+	@Option(name = "-u", aliases = "--huffman", depends = "-f", usage = "huffman code the literals of framed blocks where smaller")
+	boolean huffman;
+
+	@Option(name = "-H", aliases = "--header", usage = "write a header with parameters and length, decoding takes them from it")
+	boolean header;
+
+	@Option(name = "-p", aliases = "--parallel", forbids = "-f", usage = "compress each file on -j threads, decodable by any decoder")
+	boolean parallel;
+
+	@Option(name = "-r", aliases = "--recursive", usage = "process directories recursively")
+	boolean recursive;
+
+	@Option(name = "-c", aliases = "--stdout", usage = "write to stdout")
+	boolean toStdout;
+
+	@Option(name = "-o", aliases = "--output", metaVar = "DIR", usage = "write output files to DIR")
+	File outputDir;
+
+	@Option(name = "-j", aliases = "--threads", metaVar = "N", usage = "number of worker threads")
+	int threads = Runtime.getRuntime().availableProcessors();
+
+	@Option(name = "-q", aliases = "--quiet", usage = "no progress and summary output")
+	boolean quiet;
+
+	@Option(name = "-h", aliases = "--help", help = true, usage = "print this help")
+	boolean help;
+
+	@Argument(metaVar = "FILE", usage = "files or directories, - for stdin")
+	List<String> operands = new ArrayList<String>();
+
+	private final AtomicLong filesDone = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+
+	/* per worker codecs, reused for every file a worker processes */
+	private final ThreadLocal<HeatShrinkEncoder> encoders = new ThreadLocal<HeatShrinkEncoder>();
+	private final ThreadLocal<HeatShrinkDecoder> decoders = new ThreadLocal<HeatShrinkDecoder>();
+
 	/**
-	 * example main program for compression
-	 * @param args in and outfile
+	 * main program for compression
+	 * @param args options and files, see usage
 	 * @throws Exception
 	 */
-	public static void main( String[] args ) throws Exception { 
-		if( args.length < 3) {
-			usage();
+	public static void main( String[] args ) throws Exception {
+		HeatShrink cli = new HeatShrink();
+		CmdLineParser parser = new CmdLineParser(cli);
+		/* args4j takes a lone - for an option, as the only operand it means stdin */
+		List<String> argList = new ArrayList<String>(Arrays.asList(args));
+		boolean stdin = !argList.isEmpty() && argList.get(argList.size() - 1).equals("-");
+		if( stdin ) {
+			argList.remove(argList.size() - 1);
+		}
+		try {
+			parser.parseArgument(argList);
+			if( !cli.help && cli.encode == cli.decode ) {
+				throw new CmdLineException(parser, "one of -e or -d is required", null);
+			}
+			if( stdin && !cli.operands.isEmpty() ) {
+				throw new CmdLineException(parser, "- can not be combined with files", null);
+			}
+		} catch( CmdLineException e ) {
+			System.err.println(e.getMessage());
+			usage(parser);
+		}
+		if( cli.help ) {
+			usage(parser);
+		}
+		if( cli.run() > 0 ) {
+			System.exit(1);
 		}
-		if( args[0].equals("-d") ) decode(Arrays.copyOfRange(args, 1, args.length));
-		if( args[0].equals("-e") ) encode(Arrays.copyOfRange(args, 1, args.length));
 	}
-	
-	private static void usage() {
-		System.out.println("usage: HeatShring: (-d|-e) infile outfile");
+
+	private static void usage(CmdLineParser parser) {
+		System.err.println("usage: HeatShrink (-e|-d) [options] [FILE...]");
+		System.err.println("       HeatShrink (-e|-d) [options] infile outfile");
+		parser.printUsage(System.err);
 		System.exit(1);
 	}
 
+	/**
+	 * runs the configured operation.
+	 * @return number of failed files
+	 */
+	long run() throws Exception {
+		if( operands.isEmpty() ) {
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), IO_BUFFER_SIZE);
+			process(new FileInputStream(FileDescriptor.in), os, -1);
+			os.flush();
+			return 0;
+		}
+		List<Job> jobs = new ArrayList<Job>();
+		if( isSingleFile() ) {
+			jobs.add(new Job(new File(operands.get(0)), new File(operands.get(1))));
+		} else {
+			for( String operand : operands ) {
+				File f = new File(operand);
+				if( f.isFile() ) {
+					jobs.add(new Job(f, outputFile(f, f.getParentFile())));
+				} else {
+					collect(f, f, jobs);
+				}
+			}
+		}
+		if( toStdout ) {
+			/* output must not interleave, process one by one */
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), IO_BUFFER_SIZE);
+			for( Job job : jobs ) {
+				processFile(job.in, os);
+			}
+			os.flush();
+			return failures.get();
+		}
+		runParallel(jobs);
+		return failures.get();
+	}
+
+	/* legacy form: exactly one input and one output file */
+	private boolean isSingleFile() {
+		return operands.size() == 2 && !recursive && !toStdout && outputDir == null
+				&& new File(operands.get(0)).isFile() && !new File(operands.get(1)).isDirectory();
+	}
+
+	private void collect(File f, File root, List<Job> jobs) {
+		if( f.isDirectory() ) {
+			if( !recursive ) {
+				System.err.println(f + " is a directory, use -r");
+				return;
+			}
+			File[] children = f.listFiles();
+			if( children == null ) return;
+			for( File child : children ) {
+				collect(child, root, jobs);
+			}
+		} else if( f.isFile() ) {
+			if( encode && f.getName().endsWith(SUFFIX) ) return; // already compressed
+			if( decode && !f.getName().endsWith(SUFFIX) ) return; // not ours
+			jobs.add(new Job(f, outputFile(f, root)));
+		} else {
+			System.err.println(f + ": no such file");
+			failures.incrementAndGet();
+		}
+	}
+
+	private File outputFile(File in, File root) {
+		String name = in.getName();
+		if( encode ) {
+			name = name + SUFFIX;
+		} else {
+			name = name.endsWith(SUFFIX) ? name.substring(0, name.length() - SUFFIX.length()) : name + ".out";
+		}
+		if( outputDir == null ) {
+			return new File(in.getParentFile(), name);
+		}
+		String rel = "";
+		if( root != null ) {
+			rel = root.toURI().relativize(in.getParentFile().toURI()).getPath();
+		}
+		return new File(new File(outputDir, rel), name);
+	}
+
+	private void runParallel(List<Job> jobs) throws InterruptedException {
+		final long total = jobs.size();
+		final long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		if( !quiet ) {
+			reporter.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					System.err.print("\r" + filesDone.get() + "/" + total + " files, " + stats(start));
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+		for( final Job job : jobs ) {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					processJob(job);
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		reporter.shutdownNow();
+		if( !quiet ) {
+			System.err.println("\r" + filesDone.get() + "/" + total + " files, " + stats(start)
+					+ (failures.get() > 0 ? ", " + failures.get() + " failed" : ""));
+		}
+	}
+
+	private String stats(long start) {
+		double secs = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+		long in = bytesIn.get();
+		long out = bytesOut.get();
+		long raw = encode ? in : out;
+		long compressed = encode ? out : in;
+		return String.format(Locale.ROOT, "%.1f MB -> %.1f MB, ratio %.1f%%, %.1f MB/s",
+				in / 1e6, out / 1e6, raw == 0 ? 0.0 : 100.0 * compressed / raw, in / 1e6 / secs);
+	}
+
+	private void processJob(Job job) {
+		try {
+			File parent = job.out.getAbsoluteFile().getParentFile();
+			if( parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory() ) {
+				throw new IOException("cannot create " + parent);
+			}
+			if( framed || header || parallel ) {
+				OutputStream os = new BufferedOutputStream(new FileOutputStream(job.out), IO_BUFFER_SIZE);
+				try {
+					processFile(job.in, os);
+				} finally {
+					os.close();
+				}
+			} else {
+				transferFile(job.in, job.out);
+			}
+		} catch( Exception e ) {
+			System.err.println(job.in + ": " + e.getMessage());
+			failures.incrementAndGet();
+		}
+		filesDone.incrementAndGet();
+	}
+
+	private void processFile(File in, OutputStream os) throws IOException {
+		InputStream is = new BufferedInputStream(new FileInputStream(in), IO_BUFFER_SIZE);
+		try {
+			process(is, os, in.length());
+		} finally {
+			is.close();
+		}
+	}
+
+	/* length of the uncompressed input, -1 if unknown */
+	private void process(InputStream is, OutputStream os, long length) throws IOException {
+		CountingInputStream cis = new CountingInputStream(is);
+		CountingOutputStream cos = new CountingOutputStream(os);
+		try {
+			if( header && decode ) {
+				decodeWithHeader(cis, cos);
+				return;
+			}
+			if( header ) {
+				new HeatShrinkHeader(windowSize, lookAhead, extended, framed, length).write(cos);
+			}
+			if( framed ) {
+				HeatShrinkFramed codec = new HeatShrinkFramed(windowSize, lookAhead, extended);
+				codec.setSearchPreset(searchPreset);
+				codec.setHuffmanLiterals(huffman);
+				if( encode ) codec.encode(cis, cos); else codec.decode(cis, cos);
+			} else if( encode && parallel ) {
+				HeatShrinkParallelEncoder encoder = new HeatShrinkParallelEncoder(windowSize, lookAhead, extended, Math.max(1, threads));
+				encoder.setSearchPreset(searchPreset);
+				encoder.encode(cis, cos);
+			} else if( encode ) {
+				encoder().encode(cis, cos);
+			} else {
+				decoder().decode(cis, cos);
+			}
+		} finally {
+			bytesIn.addAndGet(cis.count);
+			bytesOut.addAndGet(cos.count);
+		}
+	}
+
+	/* parameters come from the header, the options are ignored */
+	private void decodeWithHeader(InputStream is, CountingOutputStream os) throws IOException {
+		HeatShrinkHeader h = HeatShrinkHeader.read(is);
+		if( h.isDelta() ) {
+			throw new IOException("delta stream needs a reference");
+		}
+		if( h.isFramed() ) {
+			h.newFramed().decode(is, os);
+		} else if( h.getWindowSize() == windowSize && h.getLookAhead() == lookAhead && h.isExtended() == extended ) {
+			decoder().decode(is, os);
+		} else {
+			h.newDecoder(bufferSize).decode(is, os);
+		}
+		if( h.getLength() >= 0 && os.count != h.getLength() ) {
+			throw new IOException("expected " + h.getLength() + " bytes, got " + os.count);
+		}
+	}
+
+	/* file to file without streams: the input is transferred from its FileChannel into the codec */
+	private void transferFile(File in, File out) throws IOException {
+		FileChannel ic = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+		try {
+			FileChannel oc = FileChannel.open(out.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			HeatShrinkWritableChannel wc = encode ? new HeatShrinkWritableChannel(oc, encoder())
+					: new HeatShrinkWritableChannel(oc, decoder());
+			try {
+				bytesIn.addAndGet(wc.transferFrom(ic));
+			} finally {
+				wc.close();
+			}
+			bytesOut.addAndGet(out.length());
+		} finally {
+			ic.close();
+		}
+	}
+
+	/* per thread encoder, reset for the next file */
+	private HeatShrinkEncoder encoder() {
+		HeatShrinkEncoder encoder = encoders.get();
+		if( encoder == null ) {
+			encoder = new HeatShrinkEncoder(windowSize, lookAhead,
+					windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS, extended);
+			if( searchPreset != null ) encoder.setSearchPreset(searchPreset);
+			encoders.set(encoder);
+		}
+		encoder.reset();
+		return encoder;
+	}
+
+	private HeatShrinkDecoder decoder() {
+		HeatShrinkDecoder decoder = decoders.get();
+		if( decoder == null ) {
+			decoder = new HeatShrinkDecoder(windowSize, lookAhead, bufferSize, extended);
+			decoders.set(decoder);
+		}
+		decoder.reset();
+		return decoder;
+	}
+
 	public static void encode( String[] args ) throws Exception {
 		InputStream is = new FileInputStream(args[0]);
 		OutputStream os = new FileOutputStream(args[1]);
 		HeatShrinkEncoder encoder = new HeatShrinkEncoder(10, 5);
 		encoder.encode(is,os);
 		os.close();
-		is.close();	
+		is.close();
 	}
-	
+
 	public static void decode( String[] args ) throws Exception {
 		InputStream is = new FileInputStream(args[0]);
 		OutputStream os = new FileOutputStream(args[1]);
 		HeatShrinkDecoder decoder = new HeatShrinkDecoder(10, 5, 1024);
 		decoder.decode(is, os);
 		os.close();
-		is.close();	
+		is.close();
 	}
 
-	private static void error(Result res) {
-		System.err.println("finished with error "+res.code.name());
-		System.exit(1);
+	private static class Job {
+		final File in;
+		final File out;
+
+		Job(File in, File out) {
+			this.in = in;
+			this.out = out;
+		}
+	}
+
+	static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if( b >= 0 ) count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if( n > 0 ) count += n;
+			return n;
+		}
+	}
+
+	static class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush(); // the underlying stream is closed by the caller
+		}
 	}
 
 }
@@ -0,0 +1,214 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.util.Arrays;
+
+/**
+ * compresses many small independent records in one call. One encoder and one
+ * decoder are reused for all records, each record is searched in place and
+ * the results are written back to back into one array, so there is no
+ * allocation or copying per record. Every record is a complete stream of its
+ * own that a single decoder can decode.
+ * <p>
+ * Records are given either as an array of arrays or as one array with
+ * offsets: record i is data[offsets[i]] up to data[offsets[i + 1]], so
+ * offsets has one entry more than there are records. Results come the same way.
+ * An instance is not thread safe.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkBatch {
+
+	private final HeatShrinkEncoder encoder;
+	private final HeatShrinkDecoder decoder;
+
+	public HeatShrinkBatch(int windowSize, int lookAhead) {
+		this(windowSize, lookAhead, false);
+	}
+
+	/**
+	 * @param extended use the extended format with windows beyond 15 bits
+	 */
+	public HeatShrinkBatch(int windowSize, int lookAhead, boolean extended) {
+		super();
+		encoder = new HeatShrinkEncoder(windowSize, lookAhead, windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS, extended);
+		decoder = new HeatShrinkDecoder(windowSize, lookAhead, 64, extended);
+	}
+
+	/**
+	 * @param searchPreset search limits of the encoder
+	 */
+	public void setSearchPreset(HeatShrinkEncoder.SearchPreset searchPreset) {
+		encoder.setSearchPreset(searchPreset);
+	}
+
+	/** records in one array, record i from offsets[i] to offsets[i + 1] */
+	public static final class Records {
+		private final byte[] data;
+		private final int[] offsets;
+
+		/**
+		 * @param offsets ascending, one entry more than there are records
+		 */
+		public Records(byte[] data, int[] offsets) {
+			if (data == null || offsets == null) {
+				throw new IllegalArgumentException("data and offsets must not be null");
+			}
+			if (offsets.length == 0) {
+				throw new IllegalArgumentException("offsets needs at least one entry");
+			}
+			for (int i = 0; i < offsets.length; i++) {
+				int prev = i == 0 ? 0 : offsets[i - 1];
+				if (offsets[i] < prev || offsets[i] > data.length) {
+					throw new IndexOutOfBoundsException("offset " + offsets[i] + " at " + i + ", length " + data.length);
+				}
+			}
+			this.data = data;
+			this.offsets = offsets;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+
+		public int[] getOffsets() {
+			return offsets;
+		}
+
+		/**
+		 * @return number of records
+		 */
+		public int size() {
+			return offsets.length - 1;
+		}
+
+		public int offset(int i) {
+			return offsets[i];
+		}
+
+		public int length(int i) {
+			return offsets[i + 1] - offsets[i];
+		}
+
+		/**
+		 * @return a copy of record i
+		 */
+		public byte[] get(int i) {
+			return Arrays.copyOfRange(data, offsets[i], offsets[i + 1]);
+		}
+	}
+
+	public Records encode(byte[][] records) {
+		checkNotNull(records);
+		Output out = new Output(Math.max(64, totalLength(records) / 2 + 8 * records.length));
+		int[] result = new int[records.length + 1];
+		for (int i = 0; i < records.length; i++) {
+			encodeRecord(records[i], 0, records[i].length, out);
+			result[i + 1] = out.count;
+		}
+		return new Records(out.toByteArray(), result);
+	}
+
+	public Records encode(Records records) {
+		int[] offsets = records.offsets;
+		Output out = new Output(Math.max(64, (offsets[offsets.length - 1] - offsets[0]) / 2 + 8 * records.size()));
+		int[] result = new int[offsets.length];
+		for (int i = 0; i < records.size(); i++) {
+			encodeRecord(records.data, offsets[i], offsets[i + 1], out);
+			result[i + 1] = out.count;
+		}
+		return new Records(out.toByteArray(), result);
+	}
+
+	public Records decode(byte[][] records) {
+		checkNotNull(records);
+		Output out = new Output(Math.max(64, 2 * totalLength(records)));
+		int[] result = new int[records.length + 1];
+		for (int i = 0; i < records.length; i++) {
+			decodeRecord(records[i], 0, records[i].length, out);
+			result[i + 1] = out.count;
+		}
+		return new Records(out.toByteArray(), result);
+	}
+
+	public Records decode(Records records) {
+		int[] offsets = records.offsets;
+		Output out = new Output(Math.max(64, 2 * (offsets[offsets.length - 1] - offsets[0])));
+		int[] result = new int[offsets.length];
+		for (int i = 0; i < records.size(); i++) {
+			decodeRecord(records.data, offsets[i], offsets[i + 1], out);
+			result[i + 1] = out.count;
+		}
+		return new Records(out.toByteArray(), result);
+	}
+
+	/* the record is searched in place, so the encoder's reset does not clear its buffer */
+	private void encodeRecord(byte[] data, int offset, int end, Output out) {
+		encoder.reset();
+		Result res;
+		while (true) {
+			if (offset < end) {
+				res = encoder.sinkDirect(data, offset, end - offset);
+				offset += res.count;
+			}
+			if (offset == end) {
+				encoder.finish();
+			}
+			do {
+				out.ensure(16);
+				res = encoder.poll(out.buf, out.count, out.buf.length - out.count);
+				if (res.isError()) throw new RuntimeException("error poll");
+				out.count += res.count;
+			} while (res.code == MORE);
+			if (offset == end) {
+				return;
+			}
+		}
+	}
+
+	private void decodeRecord(byte[] data, int offset, int end, Output out) {
+		decoder.reset();
+		decoder.sinkDirect(data, offset, end - offset);
+		Result res;
+		do {
+			out.ensure(64);
+			res = decoder.poll(out.buf, out.count, out.buf.length - out.count);
+			if (res.isError()) throw new RuntimeException("error poll");
+			out.count += res.count;
+		} while (res.code == MORE);
+	}
+
+	private static void checkNotNull(byte[][] records) {
+		if (records == null) {
+			throw new IllegalArgumentException("records must not be null");
+		}
+	}
+
+	private static int totalLength(byte[][] records) {
+		long total = 0;
+		for (byte[] r : records) {
+			total += r.length;
+		}
+		return (int) Math.min(total, Integer.MAX_VALUE / 4);
+	}
+
+	/* growing output array */
+	private static class Output {
+		byte[] buf;
+		int count;
+
+		Output(int size) {
+			buf = new byte[size];
+		}
+
+		void ensure(int free) {
+			if (buf.length - count < free) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + free));
+			}
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(buf, count);
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package com.rinke.solutions.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * content addressed cache of compressed results for inputs that are compressed
+ * over and over, like configuration blobs or firmware assets. Results are
+ * keyed by the SHA-256 of the input and the encoder parameters, so a repeated
+ * input is looked up instead of searched. The digest runs an order of
+ * magnitude faster than the encoder and its collisions need not be guarded
+ * against, so the inputs are not kept. The least recently used results are
+ * evicted once their total size exceeds the limit. Thread safe.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkCache {
+
+	private static final Logger log = LoggerFactory.getLogger(HeatShrinkCache.class);
+
+	/* estimated heap per entry besides the result: key, digest, map entry */
+	static final int ENTRY_OVERHEAD = 128;
+
+	private final long maxBytes;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private final LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true);
+
+	/**
+	 * @param maxBytes limit of the results kept, including an estimate of their overhead
+	 */
+	public HeatShrinkCache(long maxBytes) {
+		super();
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be positive");
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * compresses data into a raw stream like HeatShrinkEncoder.encode, or takes the
+	 * result from the cache. Windows beyond 15 bits use the extended format.
+	 * @return the compressed data, a copy the caller may modify
+	 */
+	public byte[] compress(byte[] data, int windowSize, int lookAhead) {
+		return compress(data, windowSize, lookAhead, null);
+	}
+
+	/**
+	 * @param searchPreset search limits of the encoder, null for its defaults
+	 */
+	public byte[] compress(byte[] data, int windowSize, int lookAhead, HeatShrinkEncoder.SearchPreset searchPreset) {
+		if (data == null) {
+			throw new IllegalArgumentException("data must not be null");
+		}
+		boolean extended = windowSize > HeatShrinkEncoder.MAX_WINDOW_BITS;
+		HeatShrinkEncoder.checkParams(windowSize, lookAhead, extended);
+		Key key = new Key(digest(data), windowSize, lookAhead, searchPreset);
+		byte[] result;
+		synchronized (this) {
+			result = entries.get(key);
+			if (result != null) {
+				hits++;
+				return result.clone();
+			}
+			misses++;
+		}
+		/* encode outside the lock, a concurrent miss on the same key just encodes twice */
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(windowSize, lookAhead, !extended, extended);
+		if (searchPreset != null) {
+			encoder.setSearchPreset(searchPreset);
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 16);
+		try {
+			encoder.encode(new ByteArrayInputStream(data), bos);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by byte array streams
+		}
+		result = bos.toByteArray();
+		put(key, result.clone());
+		return result;
+	}
+
+	private synchronized void put(Key key, byte[] result) {
+		long entrySize = result.length + ENTRY_OVERHEAD;
+		if (entrySize > maxBytes) {
+			log.debug("-- result of {} bytes exceeds the cache", result.length);
+			return;
+		}
+		byte[] old = entries.put(key, result);
+		if (old != null) {
+			size -= old.length + ENTRY_OVERHEAD;
+		}
+		size += entrySize;
+		Iterator<Map.Entry<Key, byte[]>> it = entries.entrySet().iterator();
+		while (size > maxBytes) {
+			/* access order, the eldest entry comes first */
+			Map.Entry<Key, byte[]> eldest = it.next();
+			size -= eldest.getValue().length + ENTRY_OVERHEAD;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	/**
+	 * @return number of cached results
+	 */
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return bytes of the cached results including their overhead
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getMaxSize() {
+		return maxBytes;
+	}
+
+	private static byte[] digest(byte[] data) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e); // every JVM has SHA-256
+		}
+	}
+
+	private static class Key {
+		final byte[] digest;
+		final int windowSize;
+		final int lookAhead;
+		final HeatShrinkEncoder.SearchPreset searchPreset;
+		final int hash;
+
+		Key(byte[] digest, int windowSize, int lookAhead, HeatShrinkEncoder.SearchPreset searchPreset) {
+			this.digest = digest;
+			this.windowSize = windowSize;
+			this.lookAhead = lookAhead;
+			this.searchPreset = searchPreset;
+			/* the digest is already well mixed */
+			int h = (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF);
+			hash = h ^ windowSize << 8 ^ lookAhead;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key k = (Key) obj;
+			return windowSize == k.windowSize && lookAhead == k.lookAhead && searchPreset == k.searchPreset
+					&& Arrays.equals(digest, k.digest);
+		}
+	}
+}
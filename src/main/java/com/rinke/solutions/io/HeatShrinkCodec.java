@@ -0,0 +1,16 @@
+package com.rinke.solutions.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * the buffer based part of encoder and decoder used by the channel adapters.
+ * @author Stefan Rinke
+ */
+interface HeatShrinkCodec {
+
+	Result sink(ByteBuffer src);
+
+	Result poll(ByteBuffer dst);
+
+	Result finish();
+}
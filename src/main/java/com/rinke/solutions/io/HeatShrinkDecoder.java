@@ -7,6 +7,9 @@ import static com.rinke.solutions.io.HeatShrinkDecoder.State.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -15,7 +18,7 @@ import org.slf4j.LoggerFactory;
  * java implementation of the heatshrink compression algorithm by https://github.com/atomicobject/heatshrink
  * @author Stefan Rinke
  */
-public class HeatShrinkDecoder {
+public class HeatShrinkDecoder implements HeatShrinkCodec {
 	
 	private static final Logger log = LoggerFactory.getLogger(HeatShrinkDecoder.class);
 	private static final int NO_BITS = -1;
@@ -30,14 +33,20 @@ public class HeatShrinkDecoder {
 	    HSDS_YIELD_BACKREF,         /* ready to yield back-reference */
 	};
 	
-	private int inputSize;        /* bytes in input buffer */
+	private byte input[];         /* input bytes, buffer or a caller's array */
+	private int inputSize;        /* end of input bytes */
 	private int inputIndex;       /* offset to next unprocessed input byte */
 	private int outputCount;      /* how many bytes to output */
 	private int outputIndex;      /* index for bytes to output */
 	private int headIndex;        /* head of window buffer */
+	private boolean headWrapped;   /* headIndex overflowed since reset */
 	private State state;              /* current state machine node */
 	private int currentByte;       /* current byte of input */
 	private int bitIndex;          /* current bit index */
+	private int pendingBits;       /* bits accumulated before a suspend */
+	private int pendingCount;      /* number of pending bits */
+	private boolean started;       /* got input since reset */
+	private boolean syncMarkers;   /* a backref of distance 1 and length 1 pads to a byte boundary */
 
     /* Fields that are only used if dynamically allocated. */
 	private int windowSize;         /* window buffer bits */
@@ -47,8 +56,23 @@ public class HeatShrinkDecoder {
     /* Input buffer, then expansion window buffer */
     private byte buffer[];
 
+    /* staging for output to direct buffers */
+    private static final int SCRATCH_SIZE = 1 << 13;
+    private byte scratch[];
+
 	public HeatShrinkDecoder(int windowSize, int lookaheadSize, int input_buffer_size) {
+		this(windowSize, lookaheadSize, input_buffer_size, false);
+	}
+
+	/**
+	 * @param extended accept windows up to HeatShrinkEncoder.MAX_EXTENDED_WINDOW_BITS
+	 */
+	public HeatShrinkDecoder(int windowSize, int lookaheadSize, int input_buffer_size, boolean extended) {
 		super();
+		HeatShrinkEncoder.checkParams(windowSize, lookaheadSize, extended);
+		if (input_buffer_size <= 0) {
+			throw new IllegalArgumentException("input buffer size must be positive");
+		}
 		this.windowSize = windowSize;
 		this.lookaheadSize = lookaheadSize;
 	    //int buffers_sz = (1 << windowSize) + input_buffer_size;
@@ -56,6 +80,16 @@ public class HeatShrinkDecoder {
 		reset();
 	}
 
+	/**
+	 * takes a backref of distance 1 and length 1 for the sync marker of
+	 * HeatShrinkEncoder.flush with sync markers enabled: the rest of the current
+	 * byte is skipped. Only for streams of such encoders, in standard streams it
+	 * is a valid backref. Off by default, not part of snapshots.
+	 */
+	public void setSyncMarkers(boolean syncMarkers) {
+		this.syncMarkers = syncMarkers;
+	}
+
 	public Result finish() {
 		switch (state) {
 		case HSDS_TAG_BIT:
@@ -89,15 +123,26 @@ public class HeatShrinkDecoder {
     public void reset() {
         int buf_sz = 1 << windowSize;
         int input_sz = inputBufferSize;
-        buffer = new byte[buf_sz + input_sz];
+        if (buffer == null) {
+            buffer = new byte[buf_sz + input_sz];
+        } else {
+            /* only the part of the window written since the last reset is cleared */
+            int dirty = !headWrapped && headIndex >= 0 && headIndex < buf_sz ? headIndex : buf_sz;
+            Arrays.fill(buffer, input_sz, input_sz + dirty, (byte) 0);
+        }
+        input = buffer;
         state = HSDS_TAG_BIT;
         inputSize = 0;
         inputIndex = 0;
         bitIndex = 0x00;
         currentByte = 0x00;
+        pendingBits = 0;
+        pendingCount = 0;
+        started = false;
         outputCount = 0;
         outputIndex = 0;
         headIndex = 0;
+        headWrapped = false;
     }
     
     public Result sink(byte inBuffer[], int offset, int size) {
@@ -105,7 +150,7 @@ public class HeatShrinkDecoder {
         	throw new IllegalArgumentException("inBuffer must not be null");
         }
 
-        int rem = inputBufferSize - inputSize;
+        int rem = sinkCapacity();
         if (rem == 0) {
             return res(0, FULL);
         }
@@ -116,45 +161,225 @@ public class HeatShrinkDecoder {
         /* copy into input buffer (at head of buffers) */
         //memcpy(&hsd->buffers[hsd->input_size], in_buf, size);
         System.arraycopy(inBuffer, offset, buffer, inputSize, size);
-        inputSize += size;
-        return res(size,OK);
+        return sunk(size);
+    }
+
+    /*
+     * Direct access to the input buffer for sources that are not byte arrays:
+     * up to sinkCapacity() bytes may be written to sinkBuffer() at sinkOffset(),
+     * then they must be committed with sunk().
+     */
+    byte[] sinkBuffer() {
+        return buffer;
+    }
+
+    int sinkOffset() {
+        return inputSize;
+    }
+
+    int sinkCapacity() {
+        return input == buffer ? inputBufferSize - inputSize : 0;
+    }
+
+    Result sunk(int count) {
+        started = true;
+        inputSize += count;
+        return res(count, OK);
+    }
+
+    /**
+     * let the decoder read len bytes of inBuffer in place, without copying them.
+     * The bytes must stay untouched until poll returns EMPTY, only a partial
+     * trailing byte is retained after that. Input sunk before must be consumed
+     * first, otherwise nothing is taken and FULL is returned.
+     * @param inBuffer must not be null
+     * @return result: count bytes were sunk
+     */
+    public Result sinkDirect(byte inBuffer[], int offset, int size) {
+        if (inBuffer == null) {
+            throw new IllegalArgumentException("inBuffer must not be null");
+        }
+        checkRange(inBuffer, offset, size);
+        if (inputSize != 0) {
+            return res(0, FULL);
+        }
+        if (size > 0) {
+            log.debug("-- sinking {} bytes direct", size);
+            started = true;
+            input = inBuffer;
+            inputIndex = offset;
+            inputSize = offset + size;
+        }
+        return res(size, OK);
+    }
+
+    /**
+     * primes the window with the history the encoder was primed with, e.g. the
+     * previous version of the data for delta decoding. Only possible after
+     * reset, before any input.
+     * @param ref must not be null
+     */
+    public void prime(byte[] ref, int offset, int size) {
+        if (ref == null) {
+            throw new IllegalArgumentException("ref must not be null");
+        }
+        checkRange(ref, offset, size);
+        if (started) {
+            throw new IllegalStateException("decoder already got input");
+        }
+        appendWindow(ref, offset, size);
+        log.debug("-- primed with {} bytes", size);
+    }
+
+    private static void checkRange(byte[] buf, int offset, int size) {
+        if (offset < 0 || size < 0 || offset > buf.length - size) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", size " + size + ", length " + buf.length);
+        }
+    }
+
+    /**
+     * captures the state of a running stream: the window, the bits of a token
+     * decoded in part and input not yet decoded. A decoder with the same
+     * parameters continues the stream after restore, even in another process.
+     * Possible at any time, pending output of a backref is part of it.
+     * @return snapshot, at most window size plus pending input bytes
+     */
+    public byte[] snapshot() {
+        HeatShrinkSnapshot.Writer w = new HeatShrinkSnapshot.Writer(HeatShrinkSnapshot.TYPE_DECODER, windowSize, lookaheadSize);
+        int windowLength = 1 << windowSize;
+        int fill = !headWrapped && headIndex >= 0 && headIndex < windowLength ? headIndex : windowLength;
+        try {
+            w.writeInt(state.ordinal());
+            w.writeBoolean(started);
+            w.writeInt(currentByte);
+            w.writeInt(bitIndex);
+            w.writeInt(pendingBits);
+            w.writeInt(pendingCount);
+            w.writeInt(outputCount);
+            w.writeInt(outputIndex);
+            w.writeInt(headIndex & (windowLength - 1));
+            w.writeRange(buffer, inputBufferSize, fill);
+            w.writeInt(inputSize - inputIndex);
+            w.write(input, inputIndex, inputSize - inputIndex);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+        }
+        return w.toByteArray();
+    }
+
+    /**
+     * continues a stream from a snapshot, replacing the current one.
+     * @param snapshot must not be null
+     * @throws IllegalArgumentException if the snapshot is corrupt or the parameters differ
+     */
+    public void restore(byte[] snapshot) {
+        if (snapshot == null) {
+            throw new IllegalArgumentException("snapshot must not be null");
+        }
+        HeatShrinkSnapshot.Reader r = new HeatShrinkSnapshot.Reader(snapshot, HeatShrinkSnapshot.TYPE_DECODER, windowSize, lookaheadSize);
+        reset();
+        int windowLength = 1 << windowSize;
+        try {
+            int ordinal = r.readInt();
+            if (ordinal < 0 || ordinal >= State.values().length) {
+                throw new IllegalArgumentException("corrupt snapshot, state " + ordinal);
+            }
+            state = State.values()[ordinal];
+            started = r.readBoolean();
+            currentByte = r.readInt();
+            bitIndex = r.readInt();
+            pendingBits = r.readInt();
+            pendingCount = r.readInt();
+            outputCount = r.readInt();
+            outputIndex = r.readInt();
+            checkRestoredBits();
+            int head = r.readInt();
+            int fill = r.readRange(buffer, inputBufferSize, windowLength);
+            if (head < 0 || head >= windowLength || fill < windowLength && head != fill) {
+                throw new IllegalArgumentException("corrupt snapshot, window head " + head);
+            }
+            /* a full window is cleared as a whole by the next reset */
+            headIndex = fill < windowLength ? fill : windowLength + head;
+            int pending = r.readInt();
+            if (pending < 0 || pending != r.available()) {
+                throw new IllegalArgumentException("corrupt snapshot, " + pending + " input bytes");
+            }
+            if (pending > 0) {
+                /* taken like direct input, sink reports FULL until it is decoded */
+                input = new byte[pending];
+                r.readFully(input);
+                inputIndex = 0;
+                inputSize = pending;
+            }
+        } catch (IOException e) {
+            reset();
+            throw new IllegalArgumentException("truncated snapshot");
+        } catch (IllegalArgumentException e) {
+            reset();
+            throw e;
+        }
+        log.debug("-- restored in state {}", state);
+    }
+
+    /*
+     * rejects bit state the decoder can not get into, a backref of distance 0
+     * would loop forever in copyBackref
+     */
+    private void checkRestoredBits() {
+        boolean inBackref = state == HSDS_BACKREF_COUNT_MSB || state == HSDS_BACKREF_COUNT_LSB || state == HSDS_YIELD_BACKREF;
+        if (outputIndex < (inBackref ? 1 : 0) || outputIndex > 1 << windowSize
+                || outputCount < (state == HSDS_YIELD_BACKREF ? 1 : 0) || outputCount > 1 << lookaheadSize) {
+            throw new IllegalArgumentException("corrupt snapshot, backref " + outputIndex + "/" + outputCount + " in " + state);
+        }
+        if (state == HSDS_BACKREF_INDEX_MSB && windowSize <= 8 || state == HSDS_BACKREF_COUNT_MSB && lookaheadSize <= 8) {
+            throw new IllegalArgumentException("corrupt snapshot, state " + state);
+        }
+        if (bitIndex < 0 || bitIndex > 0x80 || (bitIndex & (bitIndex - 1)) != 0 || currentByte < Byte.MIN_VALUE || currentByte > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("corrupt snapshot, bit index " + bitIndex);
+        }
+        if (pendingCount < 0 || pendingCount > HeatShrinkEncoder.MAX_EXTENDED_WINDOW_BITS
+                || pendingBits < 0 || pendingBits >= 1 << pendingCount) {
+            throw new IllegalArgumentException("corrupt snapshot, " + pendingCount + " pending bits");
+        }
+    }
+
+    /* all input is consumed, fall back to the own input buffer */
+    private void inputExhausted() {
+        input = buffer;
+        inputIndex = 0;
+        inputSize = 0;
     }
     
 	public void decode(InputStream is, OutputStream os) throws IOException {
-		byte[] inbuffer = new byte[1<<windowSize];
-		byte[] outbuffer = new byte[4<<windowSize];
-		int inputOffset = 0;
-		int remainingInInput = 0;
-		Result res = res(OK);
-		while( true ) {
-			do { // read and fill input buffer until full
-				if( remainingInInput == 0 ) {
-					// read some input bytes
-					remainingInInput = is.read(inbuffer);
-					inputOffset = 0;
-				}
-				if( remainingInInput < 0 ) {
-					res = finish();
-					break;
-				}
-				res = sink(inbuffer, inputOffset, remainingInInput);
-				if( res.isError() ) throw new RuntimeException("error sink");
-				remainingInInput -= res.count;
-				inputOffset += res.count;
-			} while( res.code != FULL );
-			
-			if( res.code == DONE ) break;
-			// now input buffer is full, poll for output
+		byte[] inbuffer = new byte[1 << Math.min(windowSize, 16)];
+		byte[] outbuffer = new byte[4 << Math.min(windowSize, 16)];
+		int outputSize = 0;
+		long bytesIn = 0;
+		long bytesOut = 0;
+		int fills = 0;
+		Object event = HeatShrinkEvents.beginDecode();
+		int n;
+		while( (n = is.read(inbuffer)) >= 0 ) {
+			bytesIn += n;
+			fills++;
+			// decode straight from inbuffer, it is consumed completely before the next read
+			Result res = sinkDirect(inbuffer, 0, n);
+			if( res.isError() ) throw new RuntimeException("error sink");
 			do {
-				res = poll(outbuffer);
+				res = poll(outbuffer, outputSize, outbuffer.length - outputSize);
 				if( res.isError()) throw new RuntimeException("error poll");
-				if( res.count > 0 ) {
-					os.write(outbuffer, 0, res.count);
+				outputSize += res.count;
+				bytesOut += res.count;
+				if( outputSize == outbuffer.length ) {
+					os.write(outbuffer, 0, outputSize);
+					outputSize = 0;
 				}
 			} while( res.code == MORE );
-			//if( res.code == DONE ) break;
 		}
-		
+		if( outputSize > 0 ) {
+			os.write(outbuffer, 0, outputSize);
+		}
+		HeatShrinkEvents.end(event, windowSize, lookaheadSize, bytesIn, bytesOut, fills);
 	}
 
     /**
@@ -166,13 +391,80 @@ public class HeatShrinkDecoder {
         if (outBuffer == null) {
             throw new IllegalArgumentException("outbuffer must not be null");
         }
+        return poll(outBuffer, 0, outBuffer.length);
+    }
+
+    /**
+     * sink the remaining bytes of src, as far as they fit, and advance its position.
+     * Bytes of a direct buffer are copied straight into the input buffer.
+     * @param src must not be null
+     * @return result: count bytes were sunk
+     */
+    public Result sink(ByteBuffer src) {
+        if (src == null) {
+            throw new IllegalArgumentException("src must not be null");
+        }
+        if (src.hasArray()) {
+            Result res = sink(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            ((Buffer) src).position(src.position() + res.count);
+            return res;
+        }
+        int n = Math.min(sinkCapacity(), src.remaining());
+        if (n == 0 && src.hasRemaining()) {
+            return res(0, FULL);
+        }
+        src.get(sinkBuffer(), sinkOffset(), n);
+        return sunk(n);
+    }
+
+    /**
+     * poll decoded bytes into the remaining space of dst and advance its position.
+     * @param dst must not be null
+     * @return result: count bytes were polled
+     */
+    public Result poll(ByteBuffer dst) {
+        if (dst == null) {
+            throw new IllegalArgumentException("dst must not be null");
+        }
+        if (dst.hasArray()) {
+            Result res = poll(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            ((Buffer) dst).position(dst.position() + res.count);
+            return res;
+        }
+        if (scratch == null) {
+            scratch = new byte[SCRATCH_SIZE];
+        }
+        int count = 0;
+        Result res;
+        do {
+            res = poll(scratch, 0, Math.min(scratch.length, dst.remaining()));
+            dst.put(scratch, 0, res.count);
+            count += res.count;
+        } while (res.code == MORE && dst.hasRemaining());
+        return res(count, res.code);
+    }
+
+    /**
+     * poll decoded bytes into outBuffer, starting at offset.
+     * @param outBuffer must not be null
+     * @param len at most len bytes are polled
+     * @return result: count byte were polled.
+     */
+    public Result poll( byte[] outBuffer, int offset, int len) {
+        if (outBuffer == null) {
+            throw new IllegalArgumentException("outbuffer must not be null");
+        }
+        checkRange(outBuffer, offset, len);
+        if (headIndex < 0) {
+            headWrapped = true;
+        }
         
-        int outBufSize = outBuffer.length;
+        int outBufSize = offset + len;
         
         OutputInfo oi = new OutputInfo();
         oi.buf = outBuffer;
         oi.bufSize = outBufSize;
-        oi.outputSize = 0;
+        oi.outputSize = offset;
 
         while (true) {
             log.debug("-- poll, state is {} ({}), input_size {}",
@@ -180,6 +472,10 @@ public class HeatShrinkDecoder {
             State in_state = state;
             switch (in_state) {
             case HSDS_TAG_BIT:
+                if (canDecodeBulk(oi)) {
+                    decodeBulk(oi);
+                    continue;
+                }
                 state = tagBit();
                 break;
             case HSDS_YIELD_LITERAL:
@@ -208,39 +504,137 @@ public class HeatShrinkDecoder {
              * buffer are exhausted. */
             if (state == in_state) {
 				if (oi.outputSize == outBufSize)
-					return res(oi.outputSize, MORE);
-                return res(oi.outputSize, EMPTY);
+					return res(oi.outputSize - offset, MORE);
+                return res(oi.outputSize - offset, EMPTY);
             }
         }
     }
 
+	/* true if a whole token of input and a maximal backref of output space are available */
+	private boolean canDecodeBulk(OutputInfo oi) {
+	    int tokenBits = 1 + windowSize + lookaheadSize;
+	    return inputSize - inputIndex >= ((tokenBits > 9 ? tokenBits : 9) + 7) / 8
+	            && oi.bufSize - oi.outputSize >= 1 << lookaheadSize;
+	}
+
+	/*
+	 * Decode whole tokens inline as long as input and output suffice, without
+	 * going through the states and their suspension checks.
+	 */
+	private void decodeBulk(OutputInfo oi) {
+	    int mask = (1 << windowSize) - 1;
+	    while (canDecodeBulk(oi)) {
+	        if (readBits(1) != 0) {
+	            byte c = (byte) readBits(8);
+	            buffer[inputBufferSize + (headIndex++ & mask)] = c;
+	            oi.buf[oi.outputSize++] = c;
+	        } else {
+	            int index = readBits(windowSize) + 1;
+	            int count = readBits(lookaheadSize) + 1;
+	            if (syncMarkers && index == 1 && count == 1) {
+	                sync();
+	                continue;
+	            }
+	            copyBackref(oi.buf, oi.outputSize, count, index);
+	            oi.outputSize += count;
+	        }
+	    }
+	}
+
+	/* Get the next COUNT bits, the caller ensures enough input is available. */
+	private int readBits(int count) {
+	    int accumulator = 0;
+	    while (count > 0) {
+	        if (bitIndex == 0x00) {
+	            currentByte = input[inputIndex++];
+	            if (inputIndex == inputSize) {
+	                inputExhausted();
+	            }
+	            bitIndex = 0x80;
+	        }
+	        int avail = Integer.numberOfTrailingZeros(bitIndex) + 1;
+	        int take = avail < count ? avail : count;
+	        accumulator = (accumulator << take) | ((currentByte >> (avail - take)) & ((1 << take) - 1));
+	        bitIndex >>= take;
+	        count -= take;
+	    }
+	    return accumulator;
+	}
+
+	/*
+	 * With sync markers a backref of distance 1 and length 1 marks a flush of
+	 * the encoder: the rest of the current byte is padding.
+	 */
+	private State sync() {
+	    log.debug("-- sync marker");
+	    bitIndex = 0x00;
+	    outputCount = 0;
+	    return HSDS_TAG_BIT;
+	}
+
 	private State yieldBackref(OutputInfo oi) {
 	    int count = oi.bufSize - oi.outputSize;
 	    if (count > 0) {
-	        int i = 0;
 	        if (outputCount < count) count = outputCount;
-	        //uint8_t *buf = &buffers[input_buffer_size];
-	        int mask = (1 << windowSize) - 1;
-	        
-	        int neg_offset = outputIndex;
-	        
-	        log.debug("-- emitting {} bytes from {} bytes back", count, neg_offset);
+	        log.debug("-- emitting {} bytes from {} bytes back", count, outputIndex);
 //	        ASSERT(neg_offset <= mask + 1);
 //	        ASSERT(count <= (size_t)(1 << BACKREF_COUNT_BITS(hsd)));
-
-	        for (i=0; i<count; i++) {
-	            byte c = buffer[inputBufferSize + ((headIndex - neg_offset) & mask)];
-	            pushByte(oi, c);
-	            buffer[inputBufferSize + (headIndex & mask)] = c;
-	            headIndex++;
-	            log.debug("  -- ++ 0x{}\n", c);
-	        }
+	        copyBackref(oi.buf, oi.outputSize, count, outputIndex);
+	        oi.outputSize += count;
 	        outputCount -= count;
 	        if (outputCount == 0) { return HSDS_TAG_BIT; }
 	    }
 	    return HSDS_YIELD_BACKREF;
 	}
 
+	/*
+	 * Copy count bytes starting distance bytes back in the window to out and
+	 * append them to the window. The source may overlap the bytes being
+	 * written (distance < count), the repeated pattern is then built up in
+	 * out by doubling it.
+	 */
+	private void copyBackref(byte[] out, int off, int count, int distance) {
+	    int windowLength = 1 << windowSize;
+	    int mask = windowLength - 1;
+	    if (distance == 1) {
+	        /* run of a single byte */
+	        byte c = buffer[inputBufferSize + ((headIndex - 1) & mask)];
+	        Arrays.fill(out, off, off + count, c);
+	    } else {
+	        int n = distance < count ? distance : count;
+	        int src = (headIndex - distance) & mask;
+	        int first = windowLength - src < n ? windowLength - src : n;
+	        System.arraycopy(buffer, inputBufferSize + src, out, off, first);
+	        if (first < n) {
+	            System.arraycopy(buffer, inputBufferSize, out, off + first, n - first);
+	        }
+	        /* repeat the pattern, each copy doubles it */
+	        while (n < count) {
+	            int len = n < count - n ? n : count - n;
+	            System.arraycopy(out, off, out, off + n, len);
+	            n += len;
+	        }
+	    }
+	    appendWindow(out, off, count);
+	}
+
+	private void appendWindow(byte[] src, int off, int count) {
+	    int windowLength = 1 << windowSize;
+	    if (count > windowLength) {
+	        /* only the last window length bytes are kept */
+	        headIndex += count - windowLength;
+	        off += count - windowLength;
+	        count = windowLength;
+	    }
+	    int head = headIndex & (windowLength - 1);
+	    int first = windowLength - head < count ? windowLength - head : count;
+	    System.arraycopy(src, off, buffer, inputBufferSize + head, first);
+	    if (first < count) {
+	        System.arraycopy(src, off + first, buffer, inputBufferSize, count - first);
+	    }
+	    headIndex += count;
+	}
+
 	private void pushByte(OutputInfo oi, byte c) {
 	    log.debug(" -- pushing byte: 0x%02x ('%c')", c, isPrint(c) ? c : '.');
 	    oi.buf[oi.outputSize++] = c;
@@ -253,35 +647,35 @@ public class HeatShrinkDecoder {
 	    if (bits == NO_BITS) { return HSDS_BACKREF_COUNT_LSB; }
 	    outputCount |= bits;
 	    outputCount++;
+	    if (syncMarkers && outputIndex == 1 && outputCount == 1) {
+	        return sync();
+	    }
 	    return HSDS_YIELD_BACKREF;
 	}
 
 	/* Get the next COUNT bits from the input buffer, saving incremental progress.
-	 * Returns NO_BITS on end of input, or if more than 15 bits are requested. */
+	 * Returns NO_BITS on end of input, or if more than 24 bits are requested.
+	 * Bits accumulated before a suspend are kept for the next call, counts of
+	 * more than 8 bits may span several input buffers. */
 	private int getBits(int count) {
-	    int accumulator = 0;
-	    int i = 0;
-	    if (count > 15) { return NO_BITS; }
+	    int accumulator = pendingBits;
+	    int i = pendingCount;
+	    if (count > HeatShrinkEncoder.MAX_EXTENDED_WINDOW_BITS) { return NO_BITS; }
 	    log.debug("-- popping {} bit(s)", count);
 
-	    /* If we aren't able to get COUNT bits, suspend immediately, because we
-	     * don't track how many bits of COUNT we've accumulated before suspend. */
-	    if (inputSize == 0) {
-	        if (bitIndex < (1 << (count - 1))) { return NO_BITS; }
-	    }
-
-	    for (i = 0; i < count; i++) {
+	    for (; i < count; i++) {
 	        if (bitIndex == 0x00) {
 	            if (inputSize == 0) {
 	            	log.debug("  -- out of bits, suspending w/ accumulator of {} (0x{})",
 	                    accumulator, accumulator);
+	                pendingBits = accumulator;
+	                pendingCount = i;
 	                return NO_BITS;
 	            }
-	            currentByte = buffer[inputIndex++];
+	            currentByte = input[inputIndex++];
 	            log.debug("  -- pulled byte 0x{}", currentByte);
 	            if (inputIndex == inputSize) {
-	                inputIndex = 0; /* input is exhausted */
-	                inputSize = 0;
+	                inputExhausted();
 	            }
 	            bitIndex = 0x80;
 	        }
@@ -302,6 +696,8 @@ public class HeatShrinkDecoder {
 	    }
 
 	    if (count > 1) { log.debug("  -- accumulated {}", accumulator); }
+	    pendingBits = 0;
+	    pendingCount = 0;
 	    return accumulator;
 	}
 
@@ -0,0 +1,86 @@
+package com.rinke.solutions.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * delta encoding: a patch turns a reference, e.g. the firmware image a device
+ * runs, into a new version of it. Encoder and decoder are primed with the
+ * reference, so the new version is encoded as backrefs into it wherever it is
+ * unchanged. The whole reference must fit the window, otherwise the start of
+ * it would be out of reach. By default patches use the standard format with a
+ * 15 bit window, which the C decoder reads with 32 KB of window; larger
+ * references need larger, extended windows (see windowBits) and a decoder
+ * that can afford them. Patches carry a HeatShrinkHeader with FLAG_DELTA.
+ * @author Stefan Rinke
+ */
+public final class HeatShrinkDelta {
+
+	public static final int DEFAULT_WINDOW_BITS = HeatShrinkEncoder.MAX_WINDOW_BITS;
+	public static final int DEFAULT_LOOKAHEAD_BITS = 8;
+
+	private HeatShrinkDelta() {
+	}
+
+	/**
+	 * @param referenceLength size of the reference
+	 * @return smallest window in bits that holds the reference plus an eighth
+	 * for shifted data, at most HeatShrinkEncoder.MAX_EXTENDED_WINDOW_BITS
+	 */
+	public static int windowBits(long referenceLength) {
+		long needed = referenceLength + (referenceLength >> 3);
+		int bits = DEFAULT_LOOKAHEAD_BITS + 1;
+		while (bits < HeatShrinkEncoder.MAX_EXTENDED_WINDOW_BITS && (1L << bits) < needed) {
+			bits++;
+		}
+		return bits;
+	}
+
+	/**
+	 * encodes target as a patch against reference in the standard format.
+	 * @throws IllegalArgumentException if the reference exceeds the default window
+	 */
+	public static byte[] diff(byte[] reference, byte[] target) {
+		return diff(reference, target, DEFAULT_WINDOW_BITS);
+	}
+
+	/**
+	 * encodes target as a patch against reference.
+	 * @param windowSize window in bits, beyond HeatShrinkEncoder.MAX_WINDOW_BITS
+	 * the patch is in the extended format
+	 * @throws IllegalArgumentException if the reference exceeds the window
+	 */
+	public static byte[] diff(byte[] reference, byte[] target, int windowSize) {
+		if (reference.length > 1L << windowSize) {
+			throw new IllegalArgumentException("reference of " + reference.length
+					+ " bytes exceeds the window of " + (1L << windowSize) + " bytes");
+		}
+		HeatShrinkHeader header = new HeatShrinkHeader(windowSize, DEFAULT_LOOKAHEAD_BITS,
+				windowSize > HeatShrinkEncoder.MAX_WINDOW_BITS, false, true, target.length);
+		HeatShrinkEncoder encoder = header.newEncoder();
+		if (header.isExtended()) {
+			/* bounded chains do not reach the reference in standard windows, searching them in full is cheap */
+			encoder.setSearchPreset(HeatShrinkEncoder.SearchPreset.FAST);
+		}
+		encoder.prime(reference, 0, reference.length);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(target.length / 8 + 16);
+		try {
+			header.write(bos);
+			encoder.encode(new ByteArrayInputStream(target), bos);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by byte array streams
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * applies a patch created by diff to reference.
+	 * @return the target
+	 * @throws IOException if patch is not a delta stream or corrupt
+	 */
+	public static byte[] patch(byte[] reference, byte[] patch) throws IOException {
+		return HeatShrinkHeader.decompress(patch, reference);
+	}
+
+}
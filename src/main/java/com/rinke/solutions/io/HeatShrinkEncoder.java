@@ -7,6 +7,8 @@ import static com.rinke.solutions.io.HeatShrinkEncoder.State.*;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.slf4j.Logger;
@@ -16,7 +18,7 @@ import org.slf4j.LoggerFactory;
  * java implementation of the heatshrink compression algorithm by https://github.com/atomicobject/heatshrink
  * @author Stefan Rinke
  */
-public class HeatShrinkEncoder {
+public class HeatShrinkEncoder implements HeatShrinkCodec {
 	
 	private static final Logger log = LoggerFactory.getLogger(HeatShrinkEncoder.class);
 
@@ -28,16 +30,73 @@ public class HeatShrinkEncoder {
 		HSES_YIELD_LITERAL, 	/* emit literal byte */
 		HSES_YIELD_BR_INDEX, 	/* yielding backref index */
 		HSES_YIELD_BR_LENGTH, 	/* yielding backref length */
+		HSES_YIELD_SYNC, 		/* sync marker and padding of a flush */
 		HSES_SAVE_BACKLOG, 		/* copying buffer to backlog */
 		HSES_FLUSH_BITS, 		/* flush bit buffer */
 		HSES_DONE, 				/* done */
+		HSES_ABORTED, 			/* input looks incompressible, encoding aborted */
 	}
 
 	private final int MATCH_NOT_FOUND = -1;
 
+	/** parameter limits of the standard format, as in the C implementation */
+	public static final int MIN_WINDOW_BITS = 4;
+	public static final int MAX_WINDOW_BITS = 15;
+	public static final int MIN_LOOKAHEAD_BITS = 3;
+
+	/** largest window of the extended format */
+	public static final int MAX_EXTENDED_WINDOW_BITS = 24;
+
+	/* hash chains of 3 byte prefixes index windows beyond MAX_WINDOW_BITS */
+	private static final int HASH_BITS = 16;
+	private static final int DEFAULT_MAX_CHAIN = 256;
+
+	/**
+	 * search limits trading compression for speed. A search follows at most
+	 * maxChain candidates, a quarter of them once a match of goodLength is found,
+	 * and stops at a match of niceLength. So the time spent per input byte is
+	 * bounded, even for long runs or highly repetitive input.
+	 */
+	public enum SearchPreset {
+		FASTEST(4, 4, 8),
+		FAST(16, 8, 32),
+		BALANCED(128, 32, 128),
+		/** exhaustive search, the output of the C implementation */
+		BEST(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+
+		final int maxChain;
+		final int goodLength;
+		final int niceLength;
+
+		SearchPreset(int maxChain, int goodLength, int niceLength) {
+			this.maxChain = maxChain;
+			this.goodLength = goodLength;
+			this.niceLength = niceLength;
+		}
+	}
+
+	/* max number of positions a compact index can address */
+	private static final int COMPACT_INDEX_LIMIT = 1 << 16;
+
+	/* estimate of this object and its match */
+	private static final int SHALLOW_SIZE = 96 + 24;
+
+	/*
+	 * byte chain index, either full ints or compact 16 bit entries holding
+	 * position + 1. Large windows chain positions by a hash of their next 3
+	 * bytes instead and follow at most maxChain links per search.
+	 */
 	private int index[];
+	private char compactIndex[];
+	private final boolean hashChains;
+	private final int[] last;
+	private int maxChain = Integer.MAX_VALUE;
+	private int goodLength = Integer.MAX_VALUE;
+	private int niceLength = Integer.MAX_VALUE;
+	private boolean syncMarkers;
 
 	private static final int FLAG_IS_FINISHING = 1;
+	private static final int FLAG_IS_FLUSHING = 2;
 	private static final byte HEATSHRINK_LITERAL_MARKER = 0x01;
 	private static final byte HEATSHRINK_BACKREF_MARKER = 0x00;
 
@@ -45,6 +104,7 @@ public class HeatShrinkEncoder {
 	private Match match = new Match(0, 0);
 	private int outgoingBits; /* enqueued outgoing bits */
 	private int outgoingBitsCount;
+	private int syncBits; /* zero bits of the sync marker still to yield */
 	private int flags;
 	private State state; /* current state machine node */
 	private int currentByte; /* current byte of output */
@@ -56,19 +116,103 @@ public class HeatShrinkEncoder {
 	/* input buffer and / sliding window for expansion */
 	private byte buffer[];// = new byte[2 << HEATSHRINK_STATIC_WINDOW_BITS];
 
+	/*
+	 * array that is searched, buffer or a caller's array with sinkDirect. Buffer
+	 * position i is input[inputBase + i], positions below minIndex are not
+	 * part of the input and never matched.
+	 */
+	private byte input[];
+	private int inputBase;
+	private int minIndex;
+	private boolean started;
+
+	/* window primed with a reference, matches first try the distance of the last one */
+	private boolean primed;
+	private int repeatDistance;
+
 	private boolean useIndex = true;
 
+	/* staging for output to direct buffers */
+	private static final int SCRATCH_SIZE = 1 << 13;
+	private byte[] scratch;
+
+	/* input buffers processed since reset and the flight recorder event of the current one */
+	private int fills;
+	private Object searchEvent;
+
+	/* incompressible data detection, see setIncompressibleProbe */
+	private int probeSize;
+	private boolean probing;
+	private long probedBytes;
+	private long probedBits;
+
 	public HeatShrinkEncoder(int windowSize, int lookAhead) {
+		this(windowSize, lookAhead, (2 << windowSize) <= COMPACT_INDEX_LIMIT);
+	}
+
+	/**
+	 * @param windowSize window size in bits
+	 * @param lookAhead lookahead size in bits
+	 * @param compactIndex use a 16 bit search index, only possible for window sizes up to 15 bits
+	 */
+	public HeatShrinkEncoder(int windowSize, int lookAhead, boolean compactIndex) {
+		this(windowSize, lookAhead, compactIndex, false);
+	}
+
+	/**
+	 * @param windowSize window size in bits
+	 * @param lookAhead lookahead size in bits, less than windowSize
+	 * @param compactIndex use a 16 bit search index, only possible for window sizes up to 15 bits
+	 * @param extended allow windows up to MAX_EXTENDED_WINDOW_BITS. Such streams can only
+	 * be decoded by an extended decoder, not by the C implementation.
+	 */
+	public HeatShrinkEncoder(int windowSize, int lookAhead, boolean compactIndex, boolean extended) {
 		super();
+		checkParams(windowSize, lookAhead, extended);
 		this.windowSize = windowSize;
 		this.lookAhead = lookAhead;
 		buffer = new byte[2 << windowSize];
-		index = new int[2 << windowSize];
+		if (compactIndex) {
+			if ((2 << windowSize) > COMPACT_INDEX_LIMIT) {
+				throw new IllegalArgumentException("compact index requires a window size of at most 15 bits");
+			}
+			this.compactIndex = new char[2 << windowSize];
+		} else {
+			index = new int[2 << windowSize];
+		}
+		hashChains = windowSize > MAX_WINDOW_BITS;
+		if (hashChains) {
+			last = new int[1 << HASH_BITS];
+			maxChain = DEFAULT_MAX_CHAIN;
+		} else {
+			last = new int[256];
+		}
 		reset();
 	}
 
+	static void checkParams(int windowSize, int lookAhead, boolean extended) {
+		int maxWindow = extended ? MAX_EXTENDED_WINDOW_BITS : MAX_WINDOW_BITS;
+		if (windowSize < MIN_WINDOW_BITS || windowSize > maxWindow) {
+			throw new IllegalArgumentException("window size must be between " + MIN_WINDOW_BITS + " and " + maxWindow + " bits");
+		}
+		if (lookAhead < MIN_LOOKAHEAD_BITS || lookAhead >= windowSize) {
+			throw new IllegalArgumentException("lookahead must be at least " + MIN_LOOKAHEAD_BITS + " bits and less than the window size");
+		}
+	}
+
 	public void reset() {
-		Arrays.fill(buffer, (byte) 0);
+		/* direct input leaves the buffer untouched, so records searched in place reset cheaply */
+		if (primed || started && input == buffer) {
+			Arrays.fill(buffer, (byte) 0);
+		}
+		input = buffer;
+		inputBase = 0;
+		minIndex = 0;
+		started = false;
+		primed = false;
+		repeatDistance = 0;
+		fills = 0;
+		searchEvent = null;
 		inputSize = 0;
 		state = HSES_NOT_FULL;
 		flags = 0;
@@ -78,7 +222,207 @@ public class HeatShrinkEncoder {
 		match.length = 0;
 		outgoingBits = 0x0000;
 		outgoingBitsCount = 0;
-		index = new int[2 << windowSize];
+		probing = probeSize > 0;
+		probedBytes = 0;
+		probedBits = 0;
+	}
+
+	/**
+	 * enables early detection of incompressible input. The encoder estimates the
+	 * size of its output for the first probeSize input bytes and, if that would
+	 * not be smaller than the input itself, stops searching and reports
+	 * {@link Result.Code#ABORTED} from poll. The encoder must be reset after that.
+	 * Takes effect with the next reset.
+	 * @param probeSize number of input bytes to probe, 0 disables detection
+	 */
+	public void setIncompressibleProbe(int probeSize) {
+		if (probeSize < 0) {
+			throw new IllegalArgumentException("probeSize must not be negative");
+		}
+		this.probeSize = probeSize;
+	}
+
+	/**
+	 * limits the match search. Without limits the search is exhaustive for windows
+	 * up to 15 bits, larger windows follow at most 256 candidates.
+	 * @param maxChain max number of candidates compared per position
+	 * @param goodLength once a match of this length is found only a quarter of the remaining candidates is compared
+	 * @param niceLength a match of this length ends the search
+	 */
+	public void setSearchLimits(int maxChain, int goodLength, int niceLength) {
+		if (maxChain < 1 || goodLength < 1 || niceLength < 1) {
+			throw new IllegalArgumentException("search limits must be positive");
+		}
+		this.maxChain = maxChain;
+		this.goodLength = goodLength;
+		this.niceLength = niceLength;
+	}
+
+	public void setSearchPreset(SearchPreset preset) {
+		setSearchLimits(preset.maxChain, preset.goodLength, preset.niceLength);
+	}
+
+	/**
+	 * lets flush pad the output to a byte boundary behind a sync marker, a
+	 * backref of distance 1 and length 1. Only for decoders with sync markers
+	 * enabled too, in a standard stream the marker is a valid backref and other
+	 * decoders would output an extra byte for it. Off by default.
+	 */
+	public void setSyncMarkers(boolean syncMarkers) {
+		this.syncMarkers = syncMarkers;
+	}
+
+	/**
+	 * @return true if the search index uses 16 bit entries
+	 */
+	public boolean isCompactIndex() {
+		return compactIndex != null;
+	}
+
+	/**
+	 * heap used by this encoder: its buffers and search index plus an estimate
+	 * of the object headers, assuming a 64 bit JVM with compressed oops.
+	 * @return footprint in bytes
+	 */
+	public long getHeapFootprint() {
+		long size = SHALLOW_SIZE;
+		size += arraySize(buffer.length, 1);
+		size += compactIndex != null ? arraySize(compactIndex.length, 2) : arraySize(index.length, 4);
+		size += arraySize(last.length, 4);
+		return size;
+	}
+
+	/**
+	 * heap an encoder with these parameters would take, as getHeapFootprint
+	 * reports it, without allocating one.
+	 * @return footprint in bytes
+	 */
+	public static long heapFootprint(int windowSize, boolean compactIndex) {
+		long size = SHALLOW_SIZE;
+		size += arraySize(2 << windowSize, 1);
+		size += arraySize(2 << windowSize, compactIndex ? 2 : 4);
+		size += arraySize(windowSize > MAX_WINDOW_BITS ? 1 << HASH_BITS : 256, 4);
+		return size;
+	}
+
+	static long arraySize(int length, int elementSize) {
+		long size = 16 + (long) length * elementSize;
+		return (size + 7) & ~7L;
+	}
+
+	/*
+	 * Number of zero bits padding the last output byte, valid once encoding is
+	 * done. Streams can be concatenated at bit level without them.
+	 */
+	int paddingBits() {
+		if (state != HSES_DONE) {
+			throw new IllegalStateException("encoding is not finished");
+		}
+		return bitIndex == 0x80 ? 0 : Integer.numberOfTrailingZeros(bitIndex) + 1;
+	}
+
+	/**
+	 * @return true if encoding was aborted because the input looks incompressible
+	 */
+	public boolean isAborted() {
+		return state == HSES_ABORTED;
+	}
+
+	/**
+	 * primes the window with history the decoder knows as well, e.g. the previous
+	 * version of the data for delta encoding. The last window size bytes of ref
+	 * become the backlog, so the input may refer to them, and match searches try
+	 * the distance of the previous match first. With a window larger than ref,
+	 * data that is unchanged since ref is found at the same distance throughout.
+	 * Only possible after reset, before any input, the decoder must be primed
+	 * with the same bytes.
+	 * @param ref must not be null
+	 */
+	public void prime(byte[] ref, int offset, int size) {
+		if (ref == null) {
+			throw new IllegalArgumentException("ref must not be null");
+		}
+		checkRange(ref, offset, size);
+		if (started || input != buffer) {
+			throw new IllegalStateException("encoder already got input");
+		}
+		int backlog = getInputOffset();
+		int n = size < backlog ? size : backlog;
+		/* earlier primes slide back like input */
+		System.arraycopy(buffer, n, buffer, 0, backlog - n);
+		System.arraycopy(ref, offset + size - n, buffer, backlog - n, n);
+		primed = true;
+		log.debug("-- primed with {} bytes", n);
+	}
+
+	/**
+	 * captures the state of a running stream: the window, input not yet
+	 * searched and the bits of the last incomplete output byte. An encoder with
+	 * the same parameters continues the stream after restore, even in another
+	 * process. Only possible when poll returned EMPTY and the stream is not
+	 * finished. Search limits and probe size are settings, not part of it.
+	 * @return snapshot, about window size plus pending input bytes
+	 */
+	public byte[] snapshot() {
+		if (state != HSES_NOT_FULL || flags != 0) {
+			throw new IllegalStateException("encoder is busy, poll until EMPTY first");
+		}
+		HeatShrinkSnapshot.Writer w = new HeatShrinkSnapshot.Writer(HeatShrinkSnapshot.TYPE_ENCODER, windowSize, lookAhead);
+		try {
+			w.writeBoolean(started);
+			w.writeBoolean(primed);
+			w.writeInt(repeatDistance);
+			w.writeInt(currentByte);
+			w.writeInt(bitIndex);
+			w.writeBoolean(probing);
+			w.writeLong(probedBytes);
+			w.writeLong(probedBits);
+			w.writeInt(minIndex);
+			w.writeInt(inputSize);
+			w.writeRange(input, inputBase + minIndex, getInputOffset() + inputSize - minIndex);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+		}
+		return w.toByteArray();
+	}
+
+	/**
+	 * continues a stream from a snapshot, replacing the current one. Input
+	 * follows with sink, also if the snapshot was taken with direct input.
+	 * @param snapshot must not be null
+	 * @throws IllegalArgumentException if the snapshot is corrupt or the parameters differ
+	 */
+	public void restore(byte[] snapshot) {
+		if (snapshot == null) {
+			throw new IllegalArgumentException("snapshot must not be null");
+		}
+		HeatShrinkSnapshot.Reader r = new HeatShrinkSnapshot.Reader(snapshot, HeatShrinkSnapshot.TYPE_ENCODER, windowSize, lookAhead);
+		reset();
+		try {
+			started = r.readBoolean();
+			primed = r.readBoolean();
+			repeatDistance = r.readInt();
+			currentByte = r.readInt();
+			bitIndex = r.readInt();
+			probing = r.readBoolean();
+			probedBytes = r.readLong();
+			probedBits = r.readLong();
+			minIndex = r.readInt();
+			inputSize = r.readInt();
+			int live = getInputOffset() + inputSize - minIndex;
+			if (minIndex < 0 || minIndex > getInputOffset() || inputSize < 0 || inputSize >= getInputBufferSize()
+					|| Integer.bitCount(bitIndex) != 1 || bitIndex > 0x80
+					|| r.readRange(buffer, minIndex, live) != live || r.read() >= 0) {
+				throw new IllegalArgumentException("corrupt snapshot");
+			}
+		} catch (IOException e) {
+			reset();
+			throw new IllegalArgumentException("truncated snapshot");
+		} catch (IllegalArgumentException e) {
+			reset();
+			throw e;
+		}
+		log.debug("-- restored with {} bytes of input", inputSize);
 	}
 
 	/*
@@ -89,6 +433,70 @@ public class HeatShrinkEncoder {
 		if (inputBuffer == null) {
 			throw new IllegalArgumentException("inputBuffer must not be null");
 		}
+		checkSink();
+		checkNotDirect();
+
+		int writeOffset = getInputOffset() + inputSize;
+		int remain = getInputBufferSize() - inputSize;
+		int copySize = remain < size ? remain : size;
+
+		// memcpy(&hse->buffer[write_offset], in_buf, cp_sz);
+		System.arraycopy(inputBuffer, offset, buffer, writeOffset, copySize);
+		// *input_size = cp_sz;
+
+		log.debug("-- sunk {} bytes (of {}) into encoder at {}", copySize, size, writeOffset);
+		return sunk(copySize);
+	}
+
+	/**
+	 * let the encoder search size bytes of inputBuffer in place instead of
+	 * copying them into its own buffer. All input between two resets must be one
+	 * contiguous range of the same array: if fewer bytes than size are sunk, the
+	 * rest is passed on with the next call. The bytes of the current and the
+	 * previous window must stay untouched until encoding is finished. As there is
+	 * no zero filled backlog in front of the input, the first window may compress
+	 * a little less than with sink.
+	 * @param inputBuffer must not be null
+	 * @return result: count bytes were sunk
+	 */
+	public Result sinkDirect(byte[] inputBuffer, int offset, int size) {
+		if (inputBuffer == null) {
+			throw new IllegalArgumentException("inputBuffer must not be null");
+		}
+		checkRange(inputBuffer, offset, size);
+		checkSink();
+		if (input == buffer) {
+			if (started) {
+				throw new IllegalStateException("encoder already got input by sink");
+			}
+			if (primed) {
+				throw new IllegalStateException("direct input has no backlog for a primed window");
+			}
+			input = inputBuffer;
+			inputBase = offset - getInputOffset();
+			minIndex = getInputOffset();
+		} else if (input != inputBuffer || offset != inputBase + getInputOffset() + inputSize) {
+			throw new IllegalStateException("direct input must be contiguous");
+		}
+		int remain = getInputBufferSize() - inputSize;
+		int count = remain < size ? remain : size;
+		log.debug("-- sunk {} bytes (of {}) direct at {}", count, size, offset);
+		return sunk(count);
+	}
+
+	private void checkNotDirect() {
+		if (input != buffer) {
+			throw new IllegalStateException("encoder uses direct input");
+		}
+	}
+
+	private static void checkRange(byte[] buf, int offset, int size) {
+		if (offset < 0 || size < 0 || offset > buf.length - size) {
+			throw new IndexOutOfBoundsException("offset " + offset + ", size " + size + ", length " + buf.length);
+		}
+	}
+
+	private void checkSink() {
 		/* Sinking more content after saying the content is done, tsk tsk */
 		if (isFinishing()) {
 			throw new IllegalStateException("encoder is already in finished state");
@@ -98,26 +506,37 @@ public class HeatShrinkEncoder {
 		if (state != HSES_NOT_FULL) {
 			throw new IllegalStateException("Sinking more content before processing is done");
 		}
+	}
 
-		int writeOffset = getInputOffset() + inputSize;
-		int inputBufferSize = getInputBufferSize();
-		int remain = inputBufferSize - inputSize;
-		int copySize = remain < size ? remain : size;
+	/*
+	 * Direct access to the input buffer for sources that are not byte arrays:
+	 * up to sinkCapacity() bytes may be written to sinkBuffer() at sinkOffset(),
+	 * then they must be committed with sunk().
+	 */
+	byte[] sinkBuffer() {
+		checkSink();
+		checkNotDirect();
+		return buffer;
+	}
 
-		// memcpy(&hse->buffer[write_offset], in_buf, cp_sz);
-		System.arraycopy(inputBuffer, offset, buffer, writeOffset, copySize);
-		// *input_size = cp_sz;
+	int sinkOffset() {
+		return getInputOffset() + inputSize;
+	}
 
-		inputSize += copySize;
+	int sinkCapacity() {
+		return getInputBufferSize() - inputSize;
+	}
 
-		log.debug("-- sunk {} bytes (of {}) into encoder at {}, input buffer now has {}", copySize, size, writeOffset, inputSize);
-		if (copySize == remain) {
+	Result sunk(int count) {
+		started = true;
+		inputSize += count;
+		log.debug("-- input buffer now has {}", inputSize);
+		if (inputSize == getInputBufferSize()) {
 			log.debug("-- internal buffer is now full");
 			state = HSES_FILLED;
-			return res(copySize, FULL);
+			return res(count, FULL);
 		}
-
-		return res(copySize, OK);
+		return res(count, OK);
 	}
 
 	private int getInputBufferSize() {
@@ -132,6 +551,10 @@ public class HeatShrinkEncoder {
 		return (flags & FLAG_IS_FINISHING) != 0;
 	}
 
+	private boolean isFlushing() {
+		return (flags & FLAG_IS_FLUSHING) != 0;
+	}
+
 	/*
 	 * Poll for output from the encoder, copying at most OUT_BUF_SIZE bytes into
 	 * OUT_BUF (setting *OUTPUT_SIZE to the actual amount copied).
@@ -140,18 +563,79 @@ public class HeatShrinkEncoder {
 		if (outBuf == null) {
 			throw new IllegalArgumentException("outBuf must not be null");
 		}
-		
-		int outBufSize = outBuf.length;
+		return poll(outBuf, 0, outBuf.length);
+	}
+
+	/**
+	 * sink the remaining bytes of src, as far as they fit, and advance its position.
+	 * Bytes of a direct buffer are copied straight into the input buffer.
+	 * @param src must not be null
+	 * @return result: count bytes were sunk
+	 */
+	public Result sink(ByteBuffer src) {
+		if (src == null) {
+			throw new IllegalArgumentException("src must not be null");
+		}
+		Result res;
+		if (src.hasArray()) {
+			res = sink(src.array(), src.arrayOffset() + src.position(), src.remaining());
+			((Buffer) src).position(src.position() + res.count);
+		} else {
+			int n = Math.min(sinkCapacity(), src.remaining());
+			src.get(sinkBuffer(), sinkOffset(), n);
+			res = sunk(n);
+		}
+		return res;
+	}
+
+	/**
+	 * poll output into the remaining space of dst and advance its position.
+	 * @param dst must not be null and have space remaining
+	 * @return result: count bytes were polled
+	 */
+	public Result poll(ByteBuffer dst) {
+		if (dst == null) {
+			throw new IllegalArgumentException("dst must not be null");
+		}
+		if (dst.hasArray()) {
+			Result res = poll(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			((Buffer) dst).position(dst.position() + res.count);
+			return res;
+		}
+		if (scratch == null) {
+			scratch = new byte[SCRATCH_SIZE];
+		}
+		int count = 0;
+		Result res;
+		do {
+			res = poll(scratch, 0, Math.min(scratch.length, dst.remaining()));
+			dst.put(scratch, 0, res.count);
+			count += res.count;
+		} while (res.code == MORE && dst.hasRemaining());
+		return res(count, res.code);
+	}
 
-		if (outBufSize == 0) {
+	/*
+	 * Poll for output from the encoder, copying at most LEN bytes into OUT_BUF
+	 * starting at OFFSET.
+	 */
+	public Result poll(byte[] outBuf, int offset, int len) {
+		if (outBuf == null) {
+			throw new IllegalArgumentException("outBuf must not be null");
+		}
+		checkRange(outBuf, offset, len);
+
+		if (len == 0) {
 			log.debug("-- MISUSE: output buffer size is 0");
 			throw new IllegalArgumentException("outBuf length must not be null");
 		}
 
+		int outBufSize = offset + len;
+
 		OutputInfo oi = new OutputInfo();
 		oi.buf = outBuf;
-		oi.bufSize = outBuf.length;
-		oi.outputSize = 0;
+		oi.bufSize = outBufSize;
+		oi.outputSize = offset;
 
 		while (true) {
 			log.debug("-- polling, state {} ({}), flags 0x{}", state.ordinal(), state.name().toLowerCase().substring(5), flags);
@@ -159,13 +643,16 @@ public class HeatShrinkEncoder {
 			State inState = state;
 			switch (inState) {
 			case HSES_NOT_FULL:
-				return res(oi.outputSize, EMPTY);
+				return res(oi.outputSize - offset, EMPTY);
 			case HSES_FILLED:
-				doIndexing();
-				state = HSES_SEARCH;
+				state = startSearch();
 				break;
 			case HSES_SEARCH:
-				state = stepSearch();
+				if (outBufSize - oi.outputSize >= maxTokenBytes()) {
+					state = bulkSearch(oi);
+				} else {
+					state = stepSearch();
+				}
 				break;
 			case HSES_YIELD_TAG_BIT:
 				state = yieldTagBit(oi);
@@ -179,27 +666,98 @@ public class HeatShrinkEncoder {
 			case HSES_YIELD_BR_LENGTH:
 				state = yieldBackRefLength(oi);
 				break;
+			case HSES_YIELD_SYNC:
+				state = yieldSync(oi);
+				break;
 			case HSES_SAVE_BACKLOG:
 				state = saveBacklog();
 				break;
 			case HSES_FLUSH_BITS:
 				state = flushBitBuffer(oi);
+				if (state == HSES_FLUSH_BITS) {
+					/* output is full, the last byte needs another poll */
+					return res(oi.outputSize - offset, MORE);
+				}
 			case HSES_DONE:
-				return res(oi.outputSize, EMPTY);
+				return res(oi.outputSize - offset, EMPTY);
+			case HSES_ABORTED:
+				return res(oi.outputSize - offset, ABORTED);
 			default:
 				log.debug("-- bad state {}", state.name());
-				return res(oi.outputSize, ERROR_MISUSE);
+				return res(oi.outputSize - offset, ERROR_MISUSE);
 			}
 
 			if (state == inState) {
 				/* Check if output buffer is exhausted. */
 				if (oi.outputSize == outBufSize)
-					return res(oi.outputSize, MORE);
+					return res(oi.outputSize - offset, MORE);
 			}
 		}
 		// return new PollRes(output_size, PollRes.Res.EMPTY);
 	}
 
+	private State startSearch() {
+		doIndexing();
+		fills++;
+		searchEvent = HeatShrinkEvents.beginSearch();
+		return HSES_SEARCH;
+	}
+
+	/**
+	 * match search without bit packing, the first stage of a pipeline whose
+	 * second stage is HeatShrinkTokenWriter, or a source of tokens for statistics
+	 * and other back ends. Like poll, but the tokens found are added to tokens
+	 * until it is full. Use either poll or pollTokens between two resets. A
+	 * flush just hands out the tokens of the input so far, there is no sync marker.
+	 * @param tokens must not be null
+	 * @return result: count tokens were added. MORE if tokens is full, EMPTY if
+	 * more input is needed or, after finish, all tokens are out.
+	 */
+	public Result pollTokens(HeatShrinkTokens tokens) {
+		if (tokens == null) {
+			throw new IllegalArgumentException("tokens must not be null");
+		}
+		int before = tokens.size();
+		while (true) {
+			switch (state) {
+			case HSES_NOT_FULL:
+			case HSES_DONE:
+				return res(tokens.size() - before, EMPTY);
+			case HSES_FILLED:
+				state = startSearch();
+				break;
+			case HSES_SEARCH:
+				if (tokens.isFull()) {
+					return res(tokens.size() - before, MORE);
+				}
+				State next = stepSearch();
+				if (next != HSES_YIELD_TAG_BIT) {
+					state = next;
+				} else if (match.length == 0) {
+					tokens.addLiteral(input[inputBase + getInputOffset() + match.scanIndex - 1]);
+				} else {
+					tokens.addBackref(match.pos, match.length);
+					match.scanIndex += match.length;
+					match.length = 0;
+				}
+				break;
+			case HSES_SAVE_BACKLOG:
+				state = saveBacklog();
+				break;
+			case HSES_FLUSH_BITS:
+				if (bitIndex != 0x80) {
+					throw new IllegalStateException("encoder holds bits from poll");
+				}
+				state = HSES_DONE;
+				break;
+			case HSES_ABORTED:
+				return res(tokens.size() - before, ABORTED);
+			default:
+				throw new IllegalStateException("encoder is yielding bits, use poll");
+			}
+		}
+	}
+
 	private State flushBitBuffer(OutputInfo oi) {
 		if (bitIndex == 0x80) {
 			log.debug("-- done!");
@@ -214,6 +772,42 @@ public class HeatShrinkEncoder {
 		}
 	}
 
+	/* starts the sync marker, unless the output already ends on a byte boundary or markers are off */
+	private State sync() {
+		if (bitIndex == 0x80 || !syncMarkers) {
+			flags &= ~FLAG_IS_FLUSHING;
+			return HSES_SAVE_BACKLOG;
+		}
+		syncBits = 1 + windowSize + lookAhead;
+		return HSES_YIELD_SYNC;
+	}
+
+	/*
+	 * The sync marker is a backref of distance 1 and length 1, all its bits are
+	 * zero. The match search never emits it, matches of a single byte don't pay
+	 * off, so a decoder that expects markers takes it for padding up to the next
+	 * byte boundary.
+	 */
+	private State yieldSync(OutputInfo oi) {
+		while (syncBits > 0 && canTakeByte(oi)) {
+			int count = syncBits < 8 ? syncBits : 8;
+			pushBits(count, (byte) 0, oi);
+			syncBits -= count;
+		}
+		if (syncBits > 0) {
+			return HSES_YIELD_SYNC;
+		}
+		if (bitIndex != 0x80) {
+			if (!canTakeByte(oi)) {
+				return HSES_YIELD_SYNC;
+			}
+			pushBits(Integer.numberOfTrailingZeros(bitIndex) + 1, (byte) 0, oi);
+		}
+		log.debug("-- flushed");
+		flags &= ~FLAG_IS_FLUSHING;
+		return HSES_SAVE_BACKLOG;
+	}
+
 	private State saveBacklog() {
 		log.debug("-- saving backlog");
 		int inputBufferSize = getInputBufferSize();
@@ -232,7 +826,16 @@ public class HeatShrinkEncoder {
 		// to: buffer, from: buffer + (input_buf_sz - rem) 
 		// amount: shift_sz
 		int offset = inputBufferSize - rem;
-		System.arraycopy(buffer, offset, buffer, 0, shiftSize);
+		if (offset == 0) {
+			/* flush without new input */
+		} else if (input == buffer) {
+			System.arraycopy(buffer, offset, buffer, 0, shiftSize);
+			minIndex = minIndex > offset ? minIndex - offset : 0;
+		} else {
+			/* direct input, just move the window over the caller's array */
+			inputBase += offset;
+			minIndex = minIndex > offset ? minIndex - offset : 0;
+		}
 		match.scanIndex = 0;
 		inputSize -= offset;
 		
@@ -300,8 +903,10 @@ public class HeatShrinkEncoder {
 	private void push_literal_byte(OutputInfo oi) {
 		int processedOffset = match.scanIndex - 1;
 		int inputOffset = getInputOffset() + processedOffset;
-		byte c = buffer[inputOffset];
-		log.debug("-- yielded literal byte 0x{} ('{}') from {}", c, isPrint(c) ? c : '.', inputOffset);
+		byte c = input[inputBase + inputOffset];
+		if (log.isDebugEnabled()) { // boxing the arguments costs more than the literal
+			log.debug("-- yielded literal byte 0x{} ('{}') from {}", c, isPrint(c) ? c : '.', inputOffset);
+		}
 		pushBits(8, c, oi);
 
 	}
@@ -310,6 +915,45 @@ public class HeatShrinkEncoder {
 		return c> 0x1f && c < 127;
 	}
 
+	/*
+	 * Search and emit whole tokens back to back, without going through the
+	 * yield states, as long as the output buffer can take any token.
+	 */
+	private State bulkSearch(OutputInfo oi) {
+		int headroom = maxTokenBytes();
+		while (oi.bufSize - oi.outputSize >= headroom) {
+			State next = stepSearch();
+			if (next != HSES_YIELD_TAG_BIT) {
+				return next;
+			}
+			if (match.length == 0) {
+				addTagBit(oi, HEATSHRINK_LITERAL_MARKER);
+				push_literal_byte(oi);
+			} else {
+				addTagBit(oi, HEATSHRINK_BACKREF_MARKER);
+				pushValue(windowSize, match.pos - 1, oi);
+				pushValue(lookAhead, match.length - 1, oi);
+				match.scanIndex += match.length;
+				match.length = 0;
+			}
+		}
+		return HSES_SEARCH;
+	}
+
+	/* max bytes completed by pushing one token, including pending bits */
+	private int maxTokenBytes() {
+		int bits = 1 + windowSize + lookAhead;
+		return (7 + (bits > 9 ? bits : 9)) / 8;
+	}
+
+	private void pushValue(int count, int value, OutputInfo oi) {
+		while (count > 8) {
+			pushBits(8, (byte) (value >> (count - 8)), oi);
+			count -= 8;
+		}
+		pushBits(count, (byte) value, oi);
+	}
+
 	private State yieldTagBit(OutputInfo oi) {
 		if (canTakeByte(oi)) {
 			if (match.length == 0) {
@@ -372,26 +1016,52 @@ public class HeatShrinkEncoder {
 		int msi = match.scanIndex;
 		log.debug("## step_search, scan @ {} ({}/{}), input size {}", msi, inputSize + msi, 2 * window_length, inputSize);
 
-		boolean fin = isFinishing();
+		boolean fin = isFinishing() || isFlushing();
 		if (msi > inputSize - (fin ? 1 : lookahead_sz)) {
 			/*
 			 * Current search buffer is exhausted, copy it into the backlog and
 			 * await more input.
 			 */
 			log.debug("-- end of search @ {}", msi);
-			return fin ? HSES_FLUSH_BITS : HSES_SAVE_BACKLOG;
+			HeatShrinkEvents.endSearch(searchEvent, windowSize, lookAhead, inputSize);
+			searchEvent = null;
+			return isFinishing() ? HSES_FLUSH_BITS : isFlushing() ? sync() : HSES_SAVE_BACKLOG;
 		}
 
 		int input_offset = getInputOffset();
 		int end = input_offset + msi;
 		int start = end - window_length;
+		if (start < minIndex) {
+			start = minIndex;
+		}
 
 		int max_possible = lookahead_sz;
 		if (inputSize - msi < lookahead_sz) {
 			max_possible = inputSize - msi;
 		}
 
-		match = findLongestMatch(start, end, max_possible /* , &match_length */);
+		/*
+		 * A run repeating the previous byte up to the max match length can't be
+		 * beaten, take distance 1 without searching. With a nice length set,
+		 * runs of that length are good enough.
+		 */
+		int nice = niceLength < max_possible ? niceLength : max_possible;
+		int run = end > start ? runLength(end, max_possible) : 0;
+		if (run >= nice && run > (1 + windowSize + lookAhead) / 8) {
+			log.debug("ss Run of {} bytes", run);
+			match.pos = 1;
+			match.length = run;
+		} else {
+			match = findLongestMatch(start, end, max_possible /* , &match_length */);
+			if (primed && match.pos != MATCH_NOT_FOUND) {
+				repeatDistance = match.pos;
+			}
+		}
+
+		if (probing && probe()) {
+			log.debug("-- input looks incompressible, aborting");
+			return HSES_ABORTED;
+		}
 
 		if (match.pos == MATCH_NOT_FOUND) {
 			log.debug("ss Match not found");
@@ -409,6 +1079,38 @@ public class HeatShrinkEncoder {
 		}
 	}
 
+	/*
+	 * Account the current match in the output size estimation and check if the
+	 * probe is complete. Returns true if the probed input would not shrink.
+	 */
+	private boolean probe() {
+		if (match.pos == MATCH_NOT_FOUND) {
+			probedBytes++;
+			probedBits += 9;
+		} else {
+			probedBytes += match.length;
+			probedBits += 1 + windowSize + lookAhead;
+		}
+		if (probedBytes < probeSize) {
+			return false;
+		}
+		probing = false;
+		log.debug("-- probed {} bytes, estimated {} bits", probedBytes, probedBits);
+		return probedBits >= probedBytes * 8;
+	}
+
+	/* number of bytes from pos on, up to max, that repeat the byte before pos */
+	private int runLength(int pos, int max) {
+		byte[] buf = input;
+		int p = inputBase + pos;
+		byte c = buf[p - 1];
+		int len = 0;
+		while (len < max && buf[p + len] == c) {
+			len++;
+		}
+		return len;
+	}
+
 	private static class Match {
 		public int pos;
 		public int length;
@@ -422,21 +1124,43 @@ public class HeatShrinkEncoder {
 	}
 
 	private Match findLongestMatch(int start, int end, int maxlen) {
-		log.debug("-- scanning for match of buf[{}:{}] between buf[{}:{}] (max {} bytes)", 
-				end, end + maxlen, start, end + maxlen - 1, maxlen);
+		if (log.isDebugEnabled()) {
+			log.debug("-- scanning for match of buf[{}:{}] between buf[{}:{}] (max {} bytes)", 
+					end, end + maxlen, start, end + maxlen - 1, maxlen);
+		}
 
 		int match_maxlen = 0;
 		int match_index = MATCH_NOT_FOUND;
 
 		int len = 0;
-		int needlepointIdx = end; // "points into buffer"
+		byte[] buf = input;
+		int needlepointIdx = inputBase + end; // "points into buffer"
+		int nice = niceLength < maxlen ? niceLength : maxlen;
+
+		if (repeatDistance > 0 && end - repeatDistance >= start) {
+			/* primed: unchanged data continues at the distance of the last match */
+			int pospointIdx = needlepointIdx - repeatDistance;
+			while (len < maxlen && buf[pospointIdx + len] == buf[needlepointIdx + len]) {
+				len++;
+			}
+			if (len > 0) {
+				match_maxlen = len;
+				match_index = end - repeatDistance;
+			}
+		}
 
-		if( useIndex ) {
+		if( match_maxlen >= nice ) {
+			/* repeat distance is good enough */
+		} else if( useIndex ) {
 			// struct hs_index *hsi = HEATSHRINK_ENCODER_INDEX(hse);
-			int pos = index[end];
-
-			while (pos - start >= 0) {
-				int pospointIdx = pos; // "points into buffer"
+			int pos = indexAt(end);
+			/* byte chains guarantee the first byte, hash chains don't */
+			int first = hashChains ? 0 : 1;
+			int chain = maxChain;
+			boolean good = false;
+
+			while (pos - start >= 0 && chain-- > 0) {
+				int pospointIdx = inputBase + pos; // "points into buffer"
 				len = 0;
 
 				/*
@@ -444,38 +1168,42 @@ public class HeatShrinkEncoder {
 				 * This is redundant with the index if match_maxlen is 0, but the
 				 * added branch overhead to check if it == 0 seems to be worse.
 				 */
-				if (buffer[pospointIdx + match_maxlen] != buffer[needlepointIdx + match_maxlen]) {
-					pos = index[pos];
+				if (buf[pospointIdx + match_maxlen] != buf[needlepointIdx + match_maxlen]) {
+					pos = indexAt(pos);
 					continue;
 				}
 
-				for (len = 1; len < maxlen; len++) {
-					if (buffer[pospointIdx + len] != buffer[needlepointIdx + len])
+				for (len = first; len < maxlen; len++) {
+					if (buf[pospointIdx + len] != buf[needlepointIdx + len])
 						break;
 				}
 
 				if (len > match_maxlen) {
 					match_maxlen = len;
 					match_index = pos;
-					if (len == maxlen) {
+					if (len >= nice) {
 						break;
-					} /* won't find better */
+					} /* won't find better or good enough */
+					if (len >= goodLength && !good) {
+						chain >>= 2;
+						good = true;
+					}
 				}
-				pos = index[pos];
+				pos = indexAt(pos);
 			}
 			
 		} else {
 		    for (int pos=end - 1; pos - start >= 0; pos--) {
-		        int pospointIdx = pos;
+		        int pospointIdx = inputBase + pos;
 		        
-		        if ((buffer[pospointIdx+match_maxlen] == buffer[needlepointIdx+match_maxlen])
-		            && (buffer[pospointIdx] == buffer[needlepointIdx])) {
+		        if ((buf[pospointIdx+match_maxlen] == buf[needlepointIdx+match_maxlen])
+		            && (buf[pospointIdx] == buf[needlepointIdx])) {
 		            for (len=1; len<maxlen; len++) {
 //		                if (0) {
 //		                    LOG("  --> cmp buf[%d] == 0x%02x against %02x (start %u)\n",
 //		                        pos + len, pospoint[len], needlepoint[len], start);
 //		                }
-		                if (buffer[pospointIdx+len] != buffer[needlepointIdx+len]) { break; }
+		                if (buf[pospointIdx+len] != buf[needlepointIdx+len]) { break; }
 		            }
 		            if (len > match_maxlen) {
 		                match_maxlen = len;
@@ -530,18 +1258,86 @@ public class HeatShrinkEncoder {
 		 * improve the index.
 		 */
 		// struct hs_index *hsi = HEATSHRINK_ENCODER_INDEX(hse);
-		int[] last = new int[256];
 		Arrays.fill(last, -1); // memset(last, 0xFF, sizeof(last));
 
 		int inputOffset = getInputOffset();
 		int end = inputOffset + inputSize;
+		byte[] buf = input;
+		int base = inputBase;
+
+		/*
+		 * Inside a run only its start and its last lookahead positions are chained.
+		 * Any other position of the run holds the same bytes as the last ones up to
+		 * the max match length, and a search starting there takes the run fast path.
+		 */
+		int runLimit = getLookaheadSize();
+		int runStart = minIndex;
+		int runEnd = minIndex;
+
+		if (hashChains) {
+			/* the last two positions have no 3 byte prefix, matches there are too short anyway */
+			int hashEnd = end - 2;
+			for (int i = minIndex; i < end; i++) {
+				if (i == runEnd) {
+					runStart = i;
+					runEnd = runEnd(buf, base, i, end);
+				}
+				if (i < hashEnd) {
+					int h = hash(buf, base + i);
+					index[i] = last[h];
+					if (i == runStart || i >= runEnd - runLimit) {
+						last[h] = i;
+					}
+				} else {
+					index[i] = -1;
+				}
+			}
+		} else if (compactIndex != null) {
+			for (int i = minIndex; i < end; i++) {
+				if (i == runEnd) {
+					runStart = i;
+					runEnd = runEnd(buf, base, i, end);
+				}
+				int v = (int)(buf[base + i] & 0xFF);
+				compactIndex[i] = (char) (last[v] + 1);
+				if (i == runStart || i >= runEnd - runLimit) {
+					last[v] = i;
+				}
+			}
+		} else {
+			for (int i = minIndex; i < end; i++) {
+				if (i == runEnd) {
+					runStart = i;
+					runEnd = runEnd(buf, base, i, end);
+				}
+				int v = (int)(buf[base + i] & 0xFF);
+				int lv = last[v];
+				index[i] = lv;
+				if (i == runStart || i >= runEnd - runLimit) {
+					last[v] = i;
+				}
+			}
+		}
+	}
 
-		for (int i = 0; i < end; i++) {
-			int v = (int)(buffer[i] & 0xFF);
-			int lv = last[v];
-			index[i] = lv;
-			last[v] = i;
+	/* end of the run of identical bytes starting at pos */
+	private static int runEnd(byte[] buf, int base, int pos, int end) {
+		byte c = buf[base + pos];
+		int e = pos + 1;
+		while (e < end && buf[base + e] == c) {
+			e++;
 		}
+		return e;
+	}
+
+	private static int hash(byte[] buf, int i) {
+		int v = (buf[i] & 0xFF) << 16 | (buf[i + 1] & 0xFF) << 8 | (buf[i + 2] & 0xFF);
+		return (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	/* previous position with the same byte or a negative value at the end of the chain */
+	private int indexAt(int pos) {
+		return compactIndex != null ? compactIndex[pos] - 1 : index[pos];
 	}
 
 	/*
@@ -555,15 +1351,46 @@ public class HeatShrinkEncoder {
 		if (state == HSES_NOT_FULL) {
 			state = HSES_FILLED;
 		}
+		if (state == HSES_ABORTED) {
+			return res(ABORTED);
+		}
 		return state == HSES_DONE ? res(DONE) : res(MORE);
 	}
 
+	/**
+	 * emits all input sunk so far, without ending the stream. Poll until EMPTY,
+	 * then the output holds all complete bytes up to here. The window stays,
+	 * later input still refers to earlier messages. The stream stays standard:
+	 * up to 7 bits of the last token are held back with the next output. With
+	 * setSyncMarkers the output is padded to a byte boundary behind a sync
+	 * marker instead, so it can be sent as a message, for decoders with sync
+	 * markers enabled.
+	 * @return result: MORE, poll for the output
+	 */
+	public Result flush() {
+		if (isFinishing()) {
+			throw new IllegalStateException("encoder is already in finished state");
+		}
+		if (state == HSES_ABORTED) {
+			return res(ABORTED);
+		}
+		flags |= FLAG_IS_FLUSHING;
+		if (state == HSES_NOT_FULL) {
+			state = inputSize > 0 ? HSES_FILLED : sync();
+		}
+		return res(MORE);
+	}
+
 	public void encode(InputStream is, OutputStream os) throws IOException {
 		byte[] inbuffer = new byte[1024];
 		byte[] outbuffer = new byte[4096];
 		//System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn");
 		int inputOffset = 0;
 		int remainingInInput = 0;
+		long bytesIn = 0;
+		long bytesOut = 0;
+		int fillsBefore = fills;
+		Object event = HeatShrinkEvents.beginEncode();
 		Result res = res(OK);
 		while( true ) {
 			do { // read and fill input buffer until full
@@ -571,6 +1398,7 @@ public class HeatShrinkEncoder {
 					// read some input bytes
 					remainingInInput = is.read(inbuffer);
 					inputOffset = 0;
+					if( remainingInInput > 0 ) bytesIn += remainingInInput;
 				}
 				if( remainingInInput < 0 ) {
 					res = finish();
@@ -587,12 +1415,15 @@ public class HeatShrinkEncoder {
 			do {
 				res = poll(outbuffer);
 				if( res.isError()) throw new RuntimeException("error poll");
+				if( res.code == ABORTED ) throw new IOException("encoding aborted, input looks incompressible");
 				if( res.count > 0 ) {
 					os.write(outbuffer, 0, res.count);
+					bytesOut += res.count;
 				}
 			} while( res.code == MORE );
 			//if( res.code == DONE ) break;
 		}
+		HeatShrinkEvents.end(event, windowSize, lookAhead, bytesIn, bytesOut, fills - fillsBefore);
 	}
 	
 }
@@ -0,0 +1,171 @@
+package com.rinke.solutions.io;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * flight recorder events of the codecs, all disabled by default. Enable them in
+ * a recording by name, e.g. com.rinke.solutions.io.Encode#enabled=true, and
+ * they show up in Mission Control next to GC and I/O events.
+ * The event classes are only touched if the JVM has JFR, so the codecs keep
+ * running on JVMs without it. A disabled event costs a flag check.
+ * @author Stefan Rinke
+ */
+final class HeatShrinkEvents {
+
+	private static final boolean AVAILABLE = isAvailable();
+
+	private HeatShrinkEvents() {
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/** @return a started encode event or null if not enabled */
+	static Object beginEncode() {
+		return AVAILABLE ? Jfr.begin(Jfr.ENCODE) : null;
+	}
+
+	/** @return a started decode event or null if not enabled */
+	static Object beginDecode() {
+		return AVAILABLE ? Jfr.begin(Jfr.DECODE) : null;
+	}
+
+	/** @return a started search event or null if not enabled */
+	static Object beginSearch() {
+		return AVAILABLE ? Jfr.begin(Jfr.SEARCH) : null;
+	}
+
+	static void end(Object event, int windowSize, int lookAhead, long bytesIn, long bytesOut, int fills) {
+		if (event != null) {
+			Jfr.end(event, windowSize, lookAhead, bytesIn, bytesOut, fills);
+		}
+	}
+
+	static void endSearch(Object event, int windowSize, int lookAhead, int bytes) {
+		if (event != null) {
+			Jfr.endSearch(event, windowSize, lookAhead, bytes);
+		}
+	}
+
+	/* all references to jdk.jfr, only loaded if available */
+	private static final class Jfr {
+		static final int ENCODE = 0;
+		static final int DECODE = 1;
+		static final int SEARCH = 2;
+
+		/* checked before an event is created, so disabled events allocate nothing */
+		private static final EventType[] TYPES = {
+				EventType.getEventType(EncodeEvent.class),
+				EventType.getEventType(DecodeEvent.class),
+				EventType.getEventType(SearchEvent.class) };
+
+		static Object begin(int type) {
+			if (!TYPES[type].isEnabled()) {
+				return null;
+			}
+			Event event = type == ENCODE ? new EncodeEvent() : type == DECODE ? new DecodeEvent() : new SearchEvent();
+			event.begin();
+			return event;
+		}
+
+		static void end(Object e, int windowSize, int lookAhead, long bytesIn, long bytesOut, int fills) {
+			CodecEvent event = (CodecEvent) e;
+			event.end();
+			if (event.shouldCommit()) {
+				event.windowSize = windowSize;
+				event.lookAhead = lookAhead;
+				event.bytesIn = bytesIn;
+				event.bytesOut = bytesOut;
+				event.ratio = bytesIn > 0 ? (double) bytesOut / bytesIn : 0;
+				event.fills = fills;
+				event.commit();
+			}
+		}
+
+		static void endSearch(Object e, int windowSize, int lookAhead, int bytes) {
+			SearchEvent event = (SearchEvent) e;
+			event.end();
+			if (event.shouldCommit()) {
+				event.windowSize = windowSize;
+				event.lookAhead = lookAhead;
+				event.bytes = bytes;
+				event.commit();
+			}
+		}
+	}
+
+	@Category("HeatShrink")
+	@Enabled(false)
+	@StackTrace(false)
+	static abstract class CodecEvent extends Event {
+		@Label("Window Size")
+		@Description("window size in bits")
+		int windowSize;
+
+		@Label("Lookahead")
+		@Description("lookahead size in bits")
+		int lookAhead;
+
+		@Label("Bytes In")
+		@DataAmount
+		long bytesIn;
+
+		@Label("Bytes Out")
+		@DataAmount
+		long bytesOut;
+
+		@Label("Ratio")
+		@Description("bytes out per byte in")
+		double ratio;
+
+		@Label("Buffer Fills")
+		@Description("number of input buffers processed")
+		int fills;
+	}
+
+	@Name("com.rinke.solutions.io.Encode")
+	@Label("HeatShrink Encode")
+	@Description("compression of a stream")
+	static final class EncodeEvent extends CodecEvent {
+	}
+
+	@Name("com.rinke.solutions.io.Decode")
+	@Label("HeatShrink Decode")
+	@Description("decompression of a stream")
+	static final class DecodeEvent extends CodecEvent {
+	}
+
+	@Name("com.rinke.solutions.io.Search")
+	@Label("HeatShrink Search")
+	@Description("match search over one input buffer of the encoder")
+	@Category("HeatShrink")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class SearchEvent extends Event {
+		@Label("Window Size")
+		int windowSize;
+
+		@Label("Lookahead")
+		int lookAhead;
+
+		@Label("Bytes")
+		@DataAmount
+		int bytes;
+	}
+}
@@ -0,0 +1,304 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * framed heatshrink stream. Input is split into blocks that are compressed
+ * independently. Blocks that would not shrink are stored as they are, so
+ * already compressed or encrypted data passes through without expansion.
+ *
+ * A framed stream is a sequence of frames up to the end of the stream:
+ * <pre>
+ * frame   := type rawLength payload
+ * type    := FRAME_STORED | FRAME_COMPRESSED | FRAME_HUFFMAN (one byte)
+ * payload := raw bytes (stored) | payloadLength heatshrink bytes (compressed)
+ *          | payloadLength huffman bytes (huffman)
+ * </pre>
+ * all lengths are unsigned varints (7 bits per byte, least significant first).
+ * Window size and lookahead are not part of the stream. Huffman frames code
+ * the literals of a block with a static huffman code (see HeatShrinkHuffman),
+ * the encoder writes them only if enabled and smaller.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkFramed {
+
+	private static final Logger log = LoggerFactory.getLogger(HeatShrinkFramed.class);
+
+	public static final int FRAME_STORED = 0x00;
+	public static final int FRAME_COMPRESSED = 0x01;
+	public static final int FRAME_HUFFMAN = 0x02;
+
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+	/** largest block size, decoding rejects frames beyond it */
+	public static final int MAX_BLOCK_SIZE = 1 << 24;
+	public static final int DEFAULT_PROBE_SIZE = 1 << 12;
+
+	/* max number of blocks stored without probing after an abort */
+	private static final int MAX_STORED_RUN = 16;
+
+	private final int windowSize;
+	private final int lookAhead;
+	private final boolean extended;
+	private int blockSize = DEFAULT_BLOCK_SIZE;
+	private int probeSize = DEFAULT_PROBE_SIZE;
+	private HeatShrinkEncoder.SearchPreset searchPreset;
+	private boolean huffmanLiterals;
+
+	public HeatShrinkFramed(int windowSize, int lookAhead) {
+		this(windowSize, lookAhead, false);
+	}
+
+	/**
+	 * @param extended use the extended format with windows beyond 15 bits
+	 */
+	public HeatShrinkFramed(int windowSize, int lookAhead, boolean extended) {
+		super();
+		HeatShrinkEncoder.checkParams(windowSize, lookAhead, extended);
+		this.windowSize = windowSize;
+		this.lookAhead = lookAhead;
+		this.extended = extended;
+	}
+
+	/**
+	 * @param blockSize uncompressed size of a frame, at most MAX_BLOCK_SIZE
+	 */
+	public void setBlockSize(int blockSize) {
+		if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+			throw new IllegalArgumentException("blockSize must be between 1 and " + MAX_BLOCK_SIZE);
+		}
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * @param probeSize bytes of each block to probe for compressibility, 0 to always compress whole blocks
+	 */
+	public void setProbeSize(int probeSize) {
+		if (probeSize < 0) {
+			throw new IllegalArgumentException("probeSize must not be negative");
+		}
+		this.probeSize = probeSize;
+	}
+
+	/**
+	 * @param searchPreset search limits of the encoder, null for its defaults
+	 */
+	public void setSearchPreset(HeatShrinkEncoder.SearchPreset searchPreset) {
+		this.searchPreset = searchPreset;
+	}
+
+	/**
+	 * @param huffmanLiterals write FRAME_HUFFMAN frames where they are smaller,
+	 * such streams can not be decoded by older versions
+	 */
+	public void setHuffmanLiterals(boolean huffmanLiterals) {
+		this.huffmanLiterals = huffmanLiterals;
+	}
+
+	public void encode(InputStream is, OutputStream os) throws IOException {
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(windowSize, lookAhead,
+				windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS, extended);
+		encoder.setIncompressibleProbe(probeSize);
+		if (searchPreset != null) {
+			encoder.setSearchPreset(searchPreset);
+		}
+		byte[] block = new byte[blockSize];
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(blockSize);
+		int storedRun = 1;
+		int skip = 0;
+		int len;
+		while ((len = readFully(is, block)) > 0) {
+			if (skip > 0) {
+				skip--;
+				writeStored(os, block, len);
+				continue;
+			}
+			compressed.reset();
+			boolean done = compressBlock(encoder, block, len, compressed);
+			/* huffman coded literals may shrink blocks that lz alone does not */
+			byte[] huffman = done && huffmanLiterals ? HeatShrinkHuffman.encode(compressed.toByteArray(),
+					compressed.size(), len, windowSize, lookAhead) : null;
+			if (huffman != null && huffman.length < len) {
+				os.write(FRAME_HUFFMAN);
+				writeVarint(os, len);
+				writeVarint(os, huffman.length);
+				os.write(huffman);
+				storedRun = 1;
+			} else if (done && compressed.size() < len) {
+				os.write(FRAME_COMPRESSED);
+				writeVarint(os, len);
+				writeVarint(os, compressed.size());
+				compressed.writeTo(os);
+				storedRun = 1;
+			} else {
+				log.debug("-- storing incompressible block of {} bytes", len);
+				writeStored(os, block, len);
+				/* pass the next blocks through without probing, back off exponentially */
+				skip = storedRun - 1;
+				storedRun = Math.min(storedRun * 2, MAX_STORED_RUN);
+			}
+		}
+	}
+
+	private void writeStored(OutputStream os, byte[] block, int len) throws IOException {
+		os.write(FRAME_STORED);
+		writeVarint(os, len);
+		os.write(block, 0, len);
+	}
+
+	/*
+	 * compress one block with a freshly reset encoder. Returns false if the
+	 * encoder gave up on the block.
+	 */
+	private boolean compressBlock(HeatShrinkEncoder encoder, byte[] block, int len, ByteArrayOutputStream out) {
+		encoder.reset();
+		byte[] outbuffer = new byte[4096];
+		int offset = 0;
+		Result res;
+		while (true) {
+			if (offset < len) {
+				res = encoder.sinkDirect(block, offset, len - offset);
+				offset += res.count;
+			}
+			if (offset == len) {
+				encoder.finish();
+			}
+			do {
+				res = encoder.poll(outbuffer);
+				if (res.isError()) throw new RuntimeException("error poll");
+				if (res.code == ABORTED) return false;
+				out.write(outbuffer, 0, res.count);
+			} while (res.code == MORE);
+			if (offset == len) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @throws IOException if a frame is corrupt, lengths are checked before
+	 * anything is allocated for them
+	 */
+	public void decode(InputStream is, OutputStream os) throws IOException {
+		HeatShrinkDecoder decoder = new HeatShrinkDecoder(windowSize, lookAhead, 1024, extended);
+		byte[] payload = new byte[0];
+		byte[] block = new byte[0];
+		int type;
+		while ((type = is.read()) >= 0) {
+			long rawLength = readVarint(is);
+			if (rawLength < 0 || rawLength > MAX_BLOCK_SIZE) {
+				throw new IOException("corrupt frame, raw length " + rawLength);
+			}
+			if (type == FRAME_STORED) {
+				/* copied in chunks, a stored frame needs no block of its size */
+				if (block.length < Math.min(rawLength, DEFAULT_BLOCK_SIZE)) block = new byte[(int) Math.min(rawLength, DEFAULT_BLOCK_SIZE)];
+				for (long left = rawLength; left > 0; ) {
+					int n = (int) Math.min(left, block.length);
+					readFully(is, block, n);
+					os.write(block, 0, n);
+					left -= n;
+				}
+			} else if (type == FRAME_COMPRESSED || type == FRAME_HUFFMAN) {
+				int payloadLength = checkPayloadLength(readVarint(is), (int) rawLength);
+				payload = readGrowing(is, payload, payloadLength);
+				if (block.length < rawLength) block = new byte[(int) rawLength];
+				if (type == FRAME_COMPRESSED) {
+					int n = decompressBlock(decoder, payload, payloadLength, block, (int) rawLength);
+					if (n != rawLength) {
+						throw new IOException("corrupt frame, expected " + rawLength + " bytes, got " + n);
+					}
+				} else {
+					HeatShrinkHuffman.decode(payload, payloadLength, block, (int) rawLength, windowSize, lookAhead);
+				}
+				os.write(block, 0, (int) rawLength);
+			} else {
+				throw new IOException("unknown frame type " + type);
+			}
+		}
+	}
+
+	/*
+	 * the encoder writes payloads only if smaller than the block, and every
+	 * token takes at least a bit for at most a lookahead of bytes
+	 */
+	private int checkPayloadLength(long payloadLength, int rawLength) throws IOException {
+		if (payloadLength >= rawLength || (payloadLength * 8) << lookAhead < rawLength) {
+			throw new IOException("corrupt frame, payload length " + payloadLength + " for " + rawLength + " bytes");
+		}
+		return (int) payloadLength;
+	}
+
+	/* reads len bytes into buf, growing it only as the bytes arrive */
+	private static byte[] readGrowing(InputStream is, byte[] buf, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			if (n == buf.length) {
+				buf = Arrays.copyOf(buf, Math.min(len, Math.max(buf.length * 2, DEFAULT_BLOCK_SIZE)));
+			}
+			int r = is.read(buf, n, Math.min(len, buf.length) - n);
+			if (r < 0) throw new EOFException("truncated frame");
+			n += r;
+		}
+		return buf;
+	}
+
+	/* decodes the payload in place straight into block, returns the decoded length or rawLength + 1 on overflow */
+	private int decompressBlock(HeatShrinkDecoder decoder, byte[] payload, int len, byte[] block, int rawLength) {
+		decoder.reset();
+		decoder.sinkDirect(payload, 0, len);
+		Result res = decoder.poll(block, 0, rawLength);
+		if (res.isError()) throw new RuntimeException("error poll");
+		if (res.code == MORE && decoder.poll(new byte[1]).count > 0) {
+			return rawLength + 1;
+		}
+		return res.count;
+	}
+
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			int r = is.read(buf, n, buf.length - n);
+			if (r < 0) break;
+			n += r;
+		}
+		return n;
+	}
+
+	private static void readFully(InputStream is, byte[] buf, int len) throws IOException {
+		int n = 0;
+		while (n < len) {
+			int r = is.read(buf, n, len - n);
+			if (r < 0) throw new EOFException("truncated frame");
+			n += r;
+		}
+	}
+
+	static void writeVarint(OutputStream os, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			os.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		os.write((int) value);
+	}
+
+	static long readVarint(InputStream is) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = is.read();
+			if (b < 0) throw new EOFException("truncated varint");
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("malformed varint");
+	}
+
+}
@@ -0,0 +1,293 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * optional header that makes a stream self describing. It carries the
+ * parameters a decoder needs and, if known, the uncompressed length:
+ * <pre>
+ * header := 'H' 'S' versionFlags windowBits lookaheadBits [length]
+ * versionFlags := version (high nibble) | flags (low nibble)
+ * </pre>
+ * length is an unsigned varint and present if FLAG_LENGTH is set. The header
+ * is followed by a raw heatshrink stream or, with FLAG_FRAMED, by a framed
+ * stream (see HeatShrinkFramed). A raw stream with FLAG_DELTA needs the
+ * reference it was primed with for decoding (see HeatShrinkDelta).
+ * @author Stefan Rinke
+ */
+public final class HeatShrinkHeader {
+
+	public static final int MAGIC_0 = 'H';
+	public static final int MAGIC_1 = 'S';
+	public static final int VERSION = 1;
+
+	/** extended format, windows beyond 15 bits */
+	public static final int FLAG_EXTENDED = 0x01;
+	/** payload is a framed stream */
+	public static final int FLAG_FRAMED = 0x02;
+	/** uncompressed length follows */
+	public static final int FLAG_LENGTH = 0x04;
+	/** window is primed with a reference */
+	public static final int FLAG_DELTA = 0x08;
+
+	private final int windowSize;
+	private final int lookAhead;
+	private final boolean extended;
+	private final boolean framed;
+	private final boolean delta;
+	private final long length;
+
+	/**
+	 * @param length uncompressed length, -1 if unknown
+	 */
+	public HeatShrinkHeader(int windowSize, int lookAhead, boolean extended, boolean framed, long length) {
+		this(windowSize, lookAhead, extended, framed, false, length);
+	}
+
+	/**
+	 * @param delta the stream is encoded with a primed window, not possible for framed streams
+	 * @param length uncompressed length, -1 if unknown
+	 */
+	public HeatShrinkHeader(int windowSize, int lookAhead, boolean extended, boolean framed, boolean delta, long length) {
+		super();
+		HeatShrinkEncoder.checkParams(windowSize, lookAhead, extended);
+		if (length < -1) {
+			throw new IllegalArgumentException("length must be -1 or positive");
+		}
+		if (framed && delta) {
+			throw new IllegalArgumentException("framed streams can not be delta encoded");
+		}
+		this.windowSize = windowSize;
+		this.lookAhead = lookAhead;
+		this.extended = extended;
+		this.framed = framed;
+		this.delta = delta;
+		this.length = length;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getLookAhead() {
+		return lookAhead;
+	}
+
+	public boolean isExtended() {
+		return extended;
+	}
+
+	public boolean isFramed() {
+		return framed;
+	}
+
+	public boolean isDelta() {
+		return delta;
+	}
+
+	/**
+	 * @return uncompressed length, -1 if unknown
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	public HeatShrinkEncoder newEncoder() {
+		return new HeatShrinkEncoder(windowSize, lookAhead, windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS, extended);
+	}
+
+	public HeatShrinkDecoder newDecoder(int inputBufferSize) {
+		return new HeatShrinkDecoder(windowSize, lookAhead, inputBufferSize, extended);
+	}
+
+	public HeatShrinkFramed newFramed() {
+		return new HeatShrinkFramed(windowSize, lookAhead, extended);
+	}
+
+	public void write(OutputStream os) throws IOException {
+		int flags = (extended ? FLAG_EXTENDED : 0) | (framed ? FLAG_FRAMED : 0) | (length >= 0 ? FLAG_LENGTH : 0)
+				| (delta ? FLAG_DELTA : 0);
+		os.write(MAGIC_0);
+		os.write(MAGIC_1);
+		os.write(VERSION << 4 | flags);
+		os.write(windowSize);
+		os.write(lookAhead);
+		if (length >= 0) {
+			HeatShrinkFramed.writeVarint(os, length);
+		}
+	}
+
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(16);
+		try {
+			write(bos);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * reads a header, the stream is left at the first byte after it.
+	 * @throws IOException if the stream does not start with a valid header
+	 */
+	public static HeatShrinkHeader read(InputStream is) throws IOException {
+		if (is.read() != MAGIC_0 || is.read() != MAGIC_1) {
+			throw new IOException("not a heatshrink header");
+		}
+		int versionFlags = readByte(is);
+		if (versionFlags >> 4 != VERSION) {
+			throw new IOException("unsupported header version " + (versionFlags >> 4));
+		}
+		int flags = versionFlags & 0x0F;
+		int windowSize = readByte(is);
+		int lookAhead = readByte(is);
+		long length = -1;
+		if ((flags & FLAG_LENGTH) != 0) {
+			length = HeatShrinkFramed.readVarint(is);
+			if (length < 0) {
+				throw new IOException("malformed length");
+			}
+		}
+		try {
+			return new HeatShrinkHeader(windowSize, lookAhead, (flags & FLAG_EXTENDED) != 0,
+					(flags & FLAG_FRAMED) != 0, (flags & FLAG_DELTA) != 0, length);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("invalid header: " + e.getMessage());
+		}
+	}
+
+	private static int readByte(InputStream is) throws IOException {
+		int b = is.read();
+		if (b < 0) throw new EOFException("truncated header");
+		return b;
+	}
+
+	/**
+	 * compresses data in one go into a raw stream with header and length.
+	 */
+	public static byte[] compress(byte[] data, int windowSize, int lookAhead) {
+		HeatShrinkHeader header = new HeatShrinkHeader(windowSize, lookAhead,
+				windowSize > HeatShrinkEncoder.MAX_WINDOW_BITS, false, data.length);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 16);
+		try {
+			header.write(bos);
+			header.newEncoder().encode(new ByteArrayInputStream(data), bos);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by byte array streams
+		}
+		return bos.toByteArray();
+	}
+
+	/**
+	 * decompresses a stream with header in one go. If the header carries the
+	 * length of a raw stream the output array is allocated once with the exact
+	 * size, after checking the data can expand to it at all.
+	 * @throws IOException if the header is invalid or the data does not match the length
+	 */
+	public static byte[] decompress(byte[] data) throws IOException {
+		return decompress(data, null);
+	}
+
+	/* reference primes the window of delta streams */
+	static byte[] decompress(byte[] data, byte[] reference) throws IOException {
+		ByteArrayInputStream bis = new ByteArrayInputStream(data);
+		HeatShrinkHeader header = read(bis);
+		if (header.delta != (reference != null)) {
+			throw new IOException(header.delta ? "delta stream needs a reference" : "not a delta stream");
+		}
+		if (header.length > Integer.MAX_VALUE - 8) {
+			throw new IOException("too large for an array: " + header.length);
+		}
+		if (header.framed) {
+			/* stored and huffman frames have no simple bound, grow up to the length */
+			ArrayOutputStream os = new ArrayOutputStream(header.length, Math.max(64, data.length * 4));
+			header.newFramed().decode(bis, os);
+			return os.toByteArray();
+		}
+		int offset = data.length - bis.available();
+		/* at best every token is a backref of the max count */
+		long bound = ((data.length - offset) * 8L / (1 + header.windowSize + header.lookAhead)) << header.lookAhead;
+		if (header.length > bound) {
+			throw new IOException("declared length " + header.length + " exceeds what " + (data.length - offset) + " bytes can hold");
+		}
+		HeatShrinkDecoder decoder = header.newDecoder(64);
+		if (reference != null) {
+			decoder.prime(reference, 0, reference.length);
+		}
+		decoder.sinkDirect(data, offset, data.length - offset);
+		byte[] out = new byte[header.length >= 0 ? (int) header.length : Math.max(64, data.length * 2)];
+		int n = 0;
+		while (true) {
+			if (n < out.length) {
+				Result res = decoder.poll(out, n, out.length - n);
+				if (res.isError()) throw new RuntimeException("error poll");
+				n += res.count;
+				if (res.code != MORE) break;
+			} else if (header.length >= 0) {
+				if (decoder.poll(new byte[1]).count > 0) {
+					throw new IOException("more data than the declared length " + header.length);
+				}
+				break;
+			} else {
+				out = Arrays.copyOf(out, out.length * 2);
+			}
+		}
+		if (header.length >= 0) {
+			if (n != header.length) {
+				throw new IOException("truncated, expected " + header.length + " bytes, got " + n);
+			}
+			return out;
+		}
+		return Arrays.copyOf(out, n);
+	}
+
+	/* writes into a growing array, at most of the declared length if known */
+	private static class ArrayOutputStream extends OutputStream {
+		private final long length;
+		private byte[] buf;
+		private int count;
+
+		/* the declared length is not trusted for the first allocation */
+		ArrayOutputStream(long length, int estimate) {
+			this.length = length;
+			buf = new byte[length >= 0 ? (int) Math.min(length, estimate) : estimate];
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len > buf.length - count) {
+				if (length >= 0 && len > length - count) {
+					throw new IOException("more data than the declared length " + length);
+				}
+				long size = Math.max(buf.length * 2L, (long) count + len);
+				buf = Arrays.copyOf(buf, (int) (length >= 0 ? Math.min(size, length) : Math.min(size, Integer.MAX_VALUE - 8)));
+			}
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+		}
+
+		byte[] toByteArray() throws IOException {
+			if (length >= 0) {
+				if (count != length) {
+					throw new IOException("truncated, expected " + length + " bytes, got " + count);
+				}
+				return count == buf.length ? buf : Arrays.copyOf(buf, count);
+			}
+			return Arrays.copyOf(buf, count);
+		}
+	}
+}
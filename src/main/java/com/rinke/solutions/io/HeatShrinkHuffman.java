@@ -0,0 +1,305 @@
+package com.rinke.solutions.io;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * static huffman coding of the literals of a compressed block, used by the
+ * FRAME_HUFFMAN frames of HeatShrinkFramed. The tokens of a heatshrink payload
+ * are re-coded, backrefs keep their index and count bits:
+ * <pre>
+ * payload := lengths tokens
+ * lengths := 256 code lengths of 4 bits, literal 0 first, 0 for unused literals
+ * tokens  := (1 literalCode | 0 index count)* zero padding
+ * </pre>
+ * codes are canonical and at most MAX_CODE_LENGTH bits, decoding looks them
+ * up in a single table.
+ * @author Stefan Rinke
+ */
+final class HeatShrinkHuffman {
+
+	static final int MAX_CODE_LENGTH = 12;
+	private static final int TABLE_SIZE = 128;
+
+	private HeatShrinkHuffman() {
+	}
+
+	/**
+	 * re-codes a heatshrink payload of rawLength bytes.
+	 * @return the huffman payload, null if it would not be smaller
+	 */
+	static byte[] encode(byte[] payload, int len, int rawLength, int windowSize, int lookAhead) {
+		int[] freq = new int[256];
+		BitReader in = new BitReader(payload, len);
+		for (int n = 0; n < rawLength;) {
+			if (in.read(1) != 0) {
+				freq[in.read(8)]++;
+				n++;
+			} else {
+				in.skip(windowSize);
+				n += in.read(lookAhead) + 1;
+			}
+		}
+		int[] lengths = codeLengths(freq, MAX_CODE_LENGTH);
+		int[] codes = canonicalCodes(lengths);
+
+		long bits = 8L * TABLE_SIZE;
+		int literals = 0;
+		for (int i = 0; i < 256; i++) {
+			bits += (long) freq[i] * (1 + lengths[i]);
+			literals += freq[i];
+		}
+		/* backrefs and their tags are copied as they are */
+		long plainBits = 8L * len;
+		if ((bits + plainBits - 9L * literals + 7) / 8 >= len) {
+			return null;
+		}
+
+		BitWriter out = new BitWriter(len);
+		for (int i = 0; i < 256; i += 2) {
+			out.write(lengths[i] << 4 | lengths[i + 1], 8);
+		}
+		in = new BitReader(payload, len);
+		for (int n = 0; n < rawLength;) {
+			if (in.read(1) != 0) {
+				int c = in.read(8);
+				out.write(1, 1);
+				out.write(codes[c], lengths[c]);
+				n++;
+			} else {
+				out.write(0, 1);
+				out.write(in.read(windowSize), windowSize);
+				int count = in.read(lookAhead);
+				out.write(count, lookAhead);
+				n += count + 1;
+			}
+		}
+		byte[] result = out.toByteArray();
+		return result.length < len ? result : null;
+	}
+
+	/**
+	 * decodes a huffman payload into out.
+	 * @throws IOException if the payload is corrupt
+	 */
+	static void decode(byte[] payload, int len, byte[] out, int rawLength, int windowSize, int lookAhead) throws IOException {
+		if (len < TABLE_SIZE) {
+			throw new IOException("corrupt huffman frame, no code table");
+		}
+		int[] lengths = new int[256];
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			lengths[2 * i] = (payload[i] >> 4) & 0x0F;
+			lengths[2 * i + 1] = payload[i] & 0x0F;
+		}
+		short[] table = decodeTable(lengths);
+		BitReader in = new BitReader(payload, len);
+		in.skip(8 * TABLE_SIZE);
+		int n = 0;
+		while (n < rawLength) {
+			if (in.read(1) != 0) {
+				int entry = table[in.peek(MAX_CODE_LENGTH)];
+				if (entry == 0) {
+					throw new IOException("corrupt huffman frame, invalid code");
+				}
+				in.skip(entry & 0x0F);
+				out[n++] = (byte) (entry >> 4);
+			} else {
+				int distance = in.read(windowSize) + 1;
+				int count = in.read(lookAhead) + 1;
+				if (distance > n || count > rawLength - n) {
+					throw new IOException("corrupt huffman frame, backref out of range");
+				}
+				if (distance >= count) {
+					System.arraycopy(out, n - distance, out, n, count);
+					n += count;
+				} else {
+					for (int end = n + count; n < end; n++) {
+						out[n] = out[n - distance];
+					}
+				}
+			}
+			if (in.overrun()) {
+				throw new IOException("corrupt huffman frame, truncated");
+			}
+		}
+	}
+
+	/* lengths of a huffman code for freq, limited by halving the frequencies */
+	static int[] codeLengths(int[] freq, int limit) {
+		int[] f = freq.clone();
+		while (true) {
+			int[] lengths = huffman(f);
+			int max = 0;
+			for (int l : lengths) {
+				max = Math.max(max, l);
+			}
+			if (max <= limit) {
+				return lengths;
+			}
+			for (int i = 0; i < f.length; i++) {
+				if (f[i] > 0) f[i] = (f[i] >> 1) | 1;
+			}
+		}
+	}
+
+	private static int[] huffman(int[] freq) {
+		int n = freq.length;
+		final long[] weight = new long[2 * n];
+		int[] parent = new int[2 * n];
+		PriorityQueue<Integer> queue = new PriorityQueue<Integer>(n, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int c = Long.compare(weight[a], weight[b]);
+				return c != 0 ? c : Integer.compare(a, b);
+			}
+		});
+		for (int i = 0; i < n; i++) {
+			if (freq[i] > 0) {
+				weight[i] = freq[i];
+				queue.add(i);
+			}
+		}
+		int[] lengths = new int[n];
+		if (queue.size() == 1) {
+			lengths[queue.peek()] = 1;
+			return lengths;
+		}
+		int next = n;
+		while (queue.size() > 1) {
+			int a = queue.poll();
+			int b = queue.poll();
+			weight[next] = weight[a] + weight[b];
+			parent[a] = next;
+			parent[b] = next;
+			queue.add(next++);
+		}
+		int root = next - 1;
+		/* inner nodes are created after their children, walk down from the root */
+		int[] depth = new int[2 * n];
+		for (int i = root - 1; i >= n; i--) {
+			depth[i] = depth[parent[i]] + 1;
+		}
+		for (int i = 0; i < n; i++) {
+			if (freq[i] > 0) lengths[i] = depth[parent[i]] + 1;
+		}
+		return lengths;
+	}
+
+	/* canonical codes, as in deflate: shorter codes first, equal lengths by symbol */
+	static int[] canonicalCodes(int[] lengths) {
+		int[] count = new int[MAX_CODE_LENGTH + 2];
+		for (int l : lengths) {
+			count[l]++;
+		}
+		count[0] = 0;
+		int[] next = new int[MAX_CODE_LENGTH + 2];
+		int code = 0;
+		for (int bits = 1; bits <= MAX_CODE_LENGTH + 1; bits++) {
+			code = (code + count[bits - 1]) << 1;
+			next[bits] = code;
+		}
+		int[] codes = new int[lengths.length];
+		for (int i = 0; i < lengths.length; i++) {
+			if (lengths[i] > 0) codes[i] = next[lengths[i]]++;
+		}
+		return codes;
+	}
+
+	/* entries are symbol << 4 | length, indexed by the next MAX_CODE_LENGTH bits */
+	private static short[] decodeTable(int[] lengths) throws IOException {
+		for (int l : lengths) {
+			if (l > MAX_CODE_LENGTH) throw new IOException("corrupt huffman frame, code too long");
+		}
+		int[] codes = canonicalCodes(lengths);
+		short[] table = new short[1 << MAX_CODE_LENGTH];
+		for (int i = 0; i < lengths.length; i++) {
+			int l = lengths[i];
+			if (l == 0) continue;
+			int shift = MAX_CODE_LENGTH - l;
+			int start = codes[i] << shift;
+			int end = (codes[i] + 1) << shift;
+			if (end > table.length) {
+				throw new IOException("corrupt huffman frame, oversubscribed code");
+			}
+			Arrays.fill(table, start, end, (short) (i << 4 | l));
+		}
+		return table;
+	}
+
+	/* msb first, reads beyond the end give zeros */
+	private static final class BitReader {
+		private final byte[] buf;
+		private final int len;
+		private int pos;
+		private long bits;
+		private int count;
+		private long read;
+
+		BitReader(byte[] buf, int len) {
+			this.buf = buf;
+			this.len = len;
+		}
+
+		int peek(int n) {
+			while (count < n) {
+				bits = bits << 8 | (pos < len ? buf[pos] & 0xFF : 0);
+				pos++;
+				count += 8;
+			}
+			return (int) (bits >>> (count - n)) & ((1 << n) - 1);
+		}
+
+		void skip(int n) {
+			while (n > 24) {
+				peek(24);
+				count -= 24;
+				read += 24;
+				n -= 24;
+			}
+			peek(n);
+			count -= n;
+			read += n;
+		}
+
+		int read(int n) {
+			int v = peek(n);
+			count -= n;
+			read += n;
+			return v;
+		}
+
+		boolean overrun() {
+			return read > 8L * len;
+		}
+	}
+
+	private static final class BitWriter {
+		private byte[] buf;
+		private int pos;
+		private long bits;
+		private int count;
+
+		BitWriter(int size) {
+			buf = new byte[Math.max(16, size)];
+		}
+
+		void write(int value, int n) {
+			bits = bits << n | value;
+			count += n;
+			while (count >= 8) {
+				if (pos == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+				buf[pos++] = (byte) (bits >>> (count - 8));
+				count -= 8;
+			}
+		}
+
+		byte[] toByteArray() {
+			if (count > 0) {
+				write(0, 8 - count);
+			}
+			return Arrays.copyOf(buf, pos);
+		}
+	}
+}
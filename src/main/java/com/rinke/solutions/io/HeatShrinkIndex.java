@@ -0,0 +1,333 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * random access into standard streams, like zlib's zran. One pass over a stream
+ * records access points every spacing uncompressed bytes: the compressed and
+ * uncompressed offset and a decoder snapshot with window and pending bits. A
+ * read restores the nearest access point before the offset and decodes from
+ * there, so it costs at most spacing bytes of decoding instead of the whole
+ * stream. The stream itself is not changed, the index is kept aside:
+ * <pre>
+ * index  := 'H' 'S' 'I' version windowBits lookaheadBits flags length count point*
+ * point  := compressedOffset uncompressedOffset snapshotLength snapshot
+ * </pre>
+ * numbers after the lookahead bits are unsigned varints, flags is 1 for the
+ * extended format.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(HeatShrinkIndex.class);
+
+	public static final int DEFAULT_SPACING = 1 << 20;
+	public static final int VERSION = 1;
+	public static final String SUFFIX = ".idx";
+
+	/* compressed bytes sunk at a time while building, access points fall on these steps */
+	private static final int STEP = 256;
+
+	private final int windowSize;
+	private final int lookAhead;
+	private final boolean extended;
+	private final long length;
+	private final long[] compressedOffsets;
+	private final long[] uncompressedOffsets;
+	private final byte[][] snapshots;
+
+	private HeatShrinkIndex(int windowSize, int lookAhead, boolean extended, long length,
+			long[] compressedOffsets, long[] uncompressedOffsets, byte[][] snapshots) {
+		this.windowSize = windowSize;
+		this.lookAhead = lookAhead;
+		this.extended = extended;
+		this.length = length;
+		this.compressedOffsets = compressedOffsets;
+		this.uncompressedOffsets = uncompressedOffsets;
+		this.snapshots = snapshots;
+	}
+
+	/**
+	 * decodes the stream once and records access points.
+	 * @param spacing uncompressed bytes between access points
+	 */
+	public static HeatShrinkIndex build(InputStream is, int windowSize, int lookAhead, boolean extended, int spacing) throws IOException {
+		if (spacing <= 0) {
+			throw new IllegalArgumentException("spacing must be positive");
+		}
+		HeatShrinkDecoder decoder = new HeatShrinkDecoder(windowSize, lookAhead, STEP, extended);
+		List<long[]> offsets = new ArrayList<long[]>();
+		List<byte[]> snapshots = new ArrayList<byte[]>();
+		offsets.add(new long[] { 0, 0 });
+		snapshots.add(decoder.snapshot());
+		byte[] in = new byte[STEP];
+		byte[] out = new byte[1 << 14];
+		long compressed = 0;
+		long uncompressed = 0;
+		long next = spacing;
+		int n;
+		while ((n = is.read(in)) >= 0) {
+			/* all of a step is decoded before the next, so snapshots hold no input */
+			decoder.sinkDirect(in, 0, n);
+			Result res;
+			do {
+				res = decoder.poll(out);
+				if (res.isError()) throw new RuntimeException("error poll");
+				uncompressed += res.count;
+			} while (res.code == MORE);
+			compressed += n;
+			if (uncompressed >= next) {
+				offsets.add(new long[] { compressed, uncompressed });
+				snapshots.add(decoder.snapshot());
+				next = uncompressed + spacing;
+			}
+		}
+		int count = offsets.size();
+		long[] co = new long[count];
+		long[] uo = new long[count];
+		for (int i = 0; i < count; i++) {
+			co[i] = offsets.get(i)[0];
+			uo[i] = offsets.get(i)[1];
+		}
+		log.debug("-- indexed {} bytes with {} access points", uncompressed, count);
+		return new HeatShrinkIndex(windowSize, lookAhead, extended, uncompressed, co, uo,
+				snapshots.toArray(new byte[count][]));
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getLookAhead() {
+		return lookAhead;
+	}
+
+	public boolean isExtended() {
+		return extended;
+	}
+
+	/**
+	 * @return uncompressed length of the stream
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * @return number of access points, including the one at the start
+	 */
+	public int size() {
+		return snapshots.length;
+	}
+
+	/**
+	 * reads uncompressed bytes of the indexed stream.
+	 * @param channel the compressed stream the index was built from, its position is changed
+	 * @param offset uncompressed offset to read from
+	 * @return number of bytes read, -1 if offset is at or beyond the end
+	 * @throws IOException if the stream ends before the indexed length
+	 */
+	public int read(SeekableByteChannel channel, long offset, byte[] dst, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off > dst.length - len) {
+			throw new IndexOutOfBoundsException("offset " + off + ", len " + len + ", length " + dst.length);
+		}
+		InputStream is = openStream(channel, offset);
+		int n = 0;
+		while (n < len) {
+			int r = is.read(dst, off + n, len - n);
+			if (r < 0) {
+				break;
+			}
+			n += r;
+		}
+		return n == 0 && len > 0 ? -1 : n;
+	}
+
+	/**
+	 * seeks once and streams the uncompressed bytes from offset to the end, for
+	 * ranges longer than a single read. Closing the stream does not close the channel.
+	 * @param channel the compressed stream the index was built from, only this
+	 * stream may use it until it is done
+	 * @param offset uncompressed offset to start at, at or beyond the end gives an empty stream
+	 * @throws IOException if the snapshot of the access point is corrupt
+	 */
+	public InputStream openStream(SeekableByteChannel channel, long offset) throws IOException {
+		if (offset < 0) {
+			throw new IllegalArgumentException("offset must not be negative");
+		}
+		if (channel == null) {
+			throw new IllegalArgumentException("channel must not be null");
+		}
+		HeatShrinkDecoder decoder = new HeatShrinkDecoder(windowSize, lookAhead, STEP, extended);
+		if (offset >= length) {
+			return new RangeStream(decoder, channel, 0, 0);
+		}
+		int point = Arrays.binarySearch(uncompressedOffsets, offset);
+		if (point < 0) {
+			point = -point - 2; /* the last access point before offset */
+		}
+		try {
+			decoder.restore(snapshots[point]);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("corrupt index, access point " + point + ": " + e.getMessage());
+		}
+		channel.position(compressedOffsets[point]);
+		long skip = offset - uncompressedOffsets[point];
+		log.debug("-- streaming from {} at access point {}, skipping {}", offset, point, skip);
+		return new RangeStream(decoder, channel, skip, length - offset);
+	}
+
+	/* decodes from a restored access point, drops skip bytes, then gives remaining */
+	private static class RangeStream extends InputStream {
+		private final HeatShrinkDecoder decoder;
+		private final SeekableByteChannel channel;
+		private final ByteBuffer in = ByteBuffer.allocate(1 << 13);
+		private final byte[] one = new byte[1];
+		private long skip;
+		private long remaining;
+
+		RangeStream(HeatShrinkDecoder decoder, SeekableByteChannel channel, long skip, long remaining) {
+			this.decoder = decoder;
+			this.channel = channel;
+			this.skip = skip;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (off < 0 || len < 0 || off > b.length - len) {
+				throw new IndexOutOfBoundsException("offset " + off + ", len " + len + ", length " + b.length);
+			}
+			if (remaining == 0) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			if (skip > 0) {
+				byte[] scratch = new byte[(int) Math.min(skip, 1 << 14)];
+				while (skip > 0) {
+					skip -= fill(scratch, 0, (int) Math.min(skip, scratch.length));
+				}
+			}
+			int n = fill(b, off, (int) Math.min(remaining, len));
+			remaining -= n;
+			return n;
+		}
+
+		/* polls at least one byte, sinks more input when the decoder runs dry */
+		private int fill(byte[] b, int off, int len) throws IOException {
+			while (true) {
+				/* drain first, restored decoders may hold a pending backref */
+				Result res = decoder.poll(b, off, len);
+				if (res.isError()) throw new RuntimeException("error poll");
+				if (res.count > 0) {
+					return res.count;
+				}
+				in.clear();
+				int n;
+				do {
+					n = channel.read(in);
+				} while (n == 0);
+				if (n < 0) {
+					throw new EOFException("stream ends before the indexed length");
+				}
+				/* the buffer is only refilled after the decoder took all of it */
+				decoder.sinkDirect(in.array(), 0, in.position());
+			}
+		}
+	}
+
+	public void write(OutputStream os) throws IOException {
+		os.write('H');
+		os.write('S');
+		os.write('I');
+		os.write(VERSION);
+		os.write(windowSize);
+		os.write(lookAhead);
+		os.write(extended ? 1 : 0);
+		HeatShrinkFramed.writeVarint(os, length);
+		HeatShrinkFramed.writeVarint(os, snapshots.length);
+		for (int i = 0; i < snapshots.length; i++) {
+			HeatShrinkFramed.writeVarint(os, compressedOffsets[i]);
+			HeatShrinkFramed.writeVarint(os, uncompressedOffsets[i]);
+			HeatShrinkFramed.writeVarint(os, snapshots[i].length);
+			os.write(snapshots[i]);
+		}
+	}
+
+	/**
+	 * @throws IOException if the index is invalid
+	 */
+	public static HeatShrinkIndex read(InputStream is) throws IOException {
+		if (is.read() != 'H' || is.read() != 'S' || is.read() != 'I') {
+			throw new IOException("not a heatshrink index");
+		}
+		int version = is.read();
+		if (version != VERSION) {
+			throw new IOException("unsupported index version " + version);
+		}
+		int windowSize = is.read();
+		int lookAhead = is.read();
+		int flags = is.read();
+		if (flags < 0 || flags > 1) {
+			throw new IOException("invalid index flags " + flags);
+		}
+		try {
+			HeatShrinkEncoder.checkParams(windowSize, lookAhead, flags == 1);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("invalid index: " + e.getMessage());
+		}
+		long length = HeatShrinkFramed.readVarint(is);
+		long count = HeatShrinkFramed.readVarint(is);
+		if (length < 0 || count < 1 || count > Integer.MAX_VALUE) {
+			throw new IOException("invalid index, " + count + " access points");
+		}
+		List<long[]> offsets = new ArrayList<long[]>();
+		List<byte[]> snapshots = new ArrayList<byte[]>();
+		for (long i = 0; i < count; i++) {
+			long co = HeatShrinkFramed.readVarint(is);
+			long uo = HeatShrinkFramed.readVarint(is);
+			long size = HeatShrinkFramed.readVarint(is);
+			long prev = offsets.isEmpty() ? 0 : offsets.get(offsets.size() - 1)[1];
+			if (co < 0 || uo < prev || uo > length || (i == 0 && uo != 0) || size < 0 || size > (1 << 25)) {
+				throw new IOException("invalid access point " + i);
+			}
+			byte[] snapshot = new byte[(int) size];
+			int n = 0;
+			while (n < snapshot.length) {
+				int r = is.read(snapshot, n, snapshot.length - n);
+				if (r < 0) throw new EOFException("truncated index");
+				n += r;
+			}
+			offsets.add(new long[] { co, uo });
+			snapshots.add(snapshot);
+		}
+		int n = offsets.size();
+		long[] co = new long[n];
+		long[] uo = new long[n];
+		for (int i = 0; i < n; i++) {
+			co[i] = offsets.get(i)[0];
+			uo[i] = offsets.get(i)[1];
+		}
+		return new HeatShrinkIndex(windowSize, lookAhead, flags == 1, length, co, uo, snapshots.toArray(new byte[n][]));
+	}
+}
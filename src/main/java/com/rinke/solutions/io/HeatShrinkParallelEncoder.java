@@ -0,0 +1,249 @@
+package com.rinke.solutions.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * encodes one stream on several threads, like pigz. The input is split into
+ * chunks that are encoded independently, each encoder primed with the window
+ * of raw data in front of its chunk. The chunk bitstreams are concatenated at
+ * bit level into a single standard stream, so any decoder, including the C
+ * implementation, decodes it. Compression is close to sequential encoding,
+ * only matches across chunk boundaries are lost.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkParallelEncoder {
+
+	private static final Logger log = LoggerFactory.getLogger(HeatShrinkParallelEncoder.class);
+
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	private final int windowSize;
+	private final int lookAhead;
+	private final boolean extended;
+	private final int threads;
+	private int chunkSize;
+	private HeatShrinkEncoder.SearchPreset searchPreset;
+
+	/* per worker encoders, reset for every chunk */
+	private final ThreadLocal<HeatShrinkEncoder> encoders = new ThreadLocal<HeatShrinkEncoder>();
+
+	public HeatShrinkParallelEncoder(int windowSize, int lookAhead, int threads) {
+		this(windowSize, lookAhead, false, threads);
+	}
+
+	/**
+	 * @param extended use the extended format with windows beyond 15 bits
+	 * @param threads number of chunks encoded at the same time
+	 */
+	public HeatShrinkParallelEncoder(int windowSize, int lookAhead, boolean extended, int threads) {
+		super();
+		HeatShrinkEncoder.checkParams(windowSize, lookAhead, extended);
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive");
+		}
+		this.windowSize = windowSize;
+		this.lookAhead = lookAhead;
+		this.extended = extended;
+		this.threads = threads;
+		this.chunkSize = Math.max(DEFAULT_CHUNK_SIZE, 1 << windowSize);
+	}
+
+	/**
+	 * @param chunkSize input bytes per chunk, at least the window size, so the
+	 * chunk before holds the whole window to prime with
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1 << windowSize) {
+			throw new IllegalArgumentException("chunkSize must be at least the window size");
+		}
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @param searchPreset search limits of the encoders, null for their defaults
+	 */
+	public void setSearchPreset(HeatShrinkEncoder.SearchPreset searchPreset) {
+		this.searchPreset = searchPreset;
+	}
+
+	public byte[] encode(byte[] data) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 16);
+		try {
+			encode(new ByteArrayInputStream(data), bos);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by byte array streams
+		}
+		return bos.toByteArray();
+	}
+
+	public void encode(InputStream is, OutputStream os) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "heatshrink-encoder");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			BitWriter out = new BitWriter(os);
+			/* at most two chunks per thread are read ahead */
+			Deque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+			byte[] previous = null;
+			while (true) {
+				byte[] data = new byte[chunkSize];
+				int len = readFully(is, data);
+				if (len == 0) {
+					break;
+				}
+				pending.add(pool.submit(new ChunkTask(previous, data, len)));
+				if (pending.size() >= 2 * threads) {
+					out.append(get(pending.poll()));
+				}
+				if (len < data.length) {
+					break;
+				}
+				previous = data;
+			}
+			while (!pending.isEmpty()) {
+				out.append(get(pending.poll()));
+			}
+			out.finish();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static Chunk get(Future<Chunk> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("encoding failed", e.getCause());
+		}
+	}
+
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			int r = is.read(buf, n, buf.length - n);
+			if (r < 0) break;
+			n += r;
+		}
+		return n;
+	}
+
+	private HeatShrinkEncoder encoder() {
+		HeatShrinkEncoder encoder = encoders.get();
+		if (encoder == null) {
+			encoder = new HeatShrinkEncoder(windowSize, lookAhead, windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS, extended);
+			if (searchPreset != null) encoder.setSearchPreset(searchPreset);
+			encoders.set(encoder);
+		}
+		encoder.reset();
+		return encoder;
+	}
+
+	/* encoded chunk, bits of the last byte beyond bitLength are padding */
+	private static class Chunk {
+		final byte[] bytes;
+		final long bitLength;
+
+		Chunk(byte[] bytes, long bitLength) {
+			this.bytes = bytes;
+			this.bitLength = bitLength;
+		}
+	}
+
+	private class ChunkTask implements Callable<Chunk> {
+		private final byte[] previous;
+		private final byte[] data;
+		private final int len;
+
+		ChunkTask(byte[] previous, byte[] data, int len) {
+			this.previous = previous;
+			this.data = data;
+			this.len = len;
+		}
+
+		@Override
+		public Chunk call() throws IOException {
+			HeatShrinkEncoder encoder = encoder();
+			if (previous != null) {
+				/* the decoder's window holds the raw data before this chunk */
+				int n = Math.min(previous.length, 1 << windowSize);
+				encoder.prime(previous, previous.length - n, n);
+			}
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(len / 2 + 16);
+			encoder.encode(new ByteArrayInputStream(data, 0, len), bos);
+			byte[] bytes = bos.toByteArray();
+			log.debug("-- chunk of {} bytes encoded to {}", len, bytes.length);
+			return new Chunk(bytes, 8L * bytes.length - encoder.paddingBits());
+		}
+	}
+
+	/* concatenates bitstreams, a chunk may start in the middle of a byte */
+	private static class BitWriter {
+		private final OutputStream os;
+		private int partial; /* pending bits, msb first */
+		private int partialBits;
+
+		BitWriter(OutputStream os) {
+			this.os = os;
+		}
+
+		void append(Chunk chunk) throws IOException {
+			byte[] in = chunk.bytes;
+			int fullBytes = (int) (chunk.bitLength >>> 3);
+			int restBits = (int) (chunk.bitLength & 7);
+			if (partialBits == 0) {
+				os.write(in, 0, fullBytes);
+			} else {
+				byte[] out = new byte[fullBytes];
+				int shift = partialBits;
+				for (int i = 0; i < fullBytes; i++) {
+					int b = in[i] & 0xFF;
+					out[i] = (byte) (partial | b >>> shift);
+					partial = (b << (8 - shift)) & 0xFF;
+				}
+				os.write(out);
+			}
+			if (restBits > 0) {
+				int b = in[fullBytes] & 0xFF & (0xFF00 >>> restBits);
+				partial |= b >>> partialBits;
+				partialBits += restBits;
+				if (partialBits >= 8) {
+					os.write(partial);
+					partialBits -= 8;
+					partial = (b << (restBits - partialBits)) & 0xFF;
+				}
+			}
+		}
+
+		/* pads the last byte with zeros like the encoder does */
+		void finish() throws IOException {
+			if (partialBits > 0) {
+				os.write(partial);
+				partialBits = 0;
+				partial = 0;
+			}
+		}
+	}
+}
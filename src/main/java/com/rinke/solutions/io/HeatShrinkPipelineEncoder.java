@@ -0,0 +1,190 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * encodes one stream in two stages on two threads: a worker reads the input and
+ * searches matches (HeatShrinkEncoder.pollTokens), the calling thread packs the
+ * tokens into bits (HeatShrinkTokenWriter) and writes them. Tokens are handed
+ * over in batches through a bounded queue, the batches are reused. The output
+ * is the same as HeatShrinkEncoder.encode gives.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkPipelineEncoder {
+
+	private static final Logger log = LoggerFactory.getLogger(HeatShrinkPipelineEncoder.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 1 << 13;
+
+	/* batches in flight between the stages */
+	private static final int BATCHES = 4;
+
+	private final int windowSize;
+	private final int lookAhead;
+	private final boolean extended;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private HeatShrinkEncoder.SearchPreset searchPreset;
+
+	public HeatShrinkPipelineEncoder(int windowSize, int lookAhead) {
+		this(windowSize, lookAhead, false);
+	}
+
+	/**
+	 * @param extended use the extended format with windows beyond 15 bits
+	 */
+	public HeatShrinkPipelineEncoder(int windowSize, int lookAhead, boolean extended) {
+		super();
+		HeatShrinkEncoder.checkParams(windowSize, lookAhead, extended);
+		this.windowSize = windowSize;
+		this.lookAhead = lookAhead;
+		this.extended = extended;
+	}
+
+	/**
+	 * @param batchSize tokens handed over at a time
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize must be positive");
+		}
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param searchPreset search limits of the encoder, null for its defaults
+	 */
+	public void setSearchPreset(HeatShrinkEncoder.SearchPreset searchPreset) {
+		this.searchPreset = searchPreset;
+	}
+
+	public byte[] encode(byte[] data) {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 16);
+		try {
+			encode(new ByteArrayInputStream(data), bos);
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by byte array streams
+		}
+		return bos.toByteArray();
+	}
+
+	public void encode(InputStream is, OutputStream os) throws IOException {
+		BlockingQueue<HeatShrinkTokens> free = new ArrayBlockingQueue<HeatShrinkTokens>(BATCHES);
+		BlockingQueue<HeatShrinkTokens> full = new ArrayBlockingQueue<HeatShrinkTokens>(BATCHES + 1);
+		for (int i = 0; i < BATCHES; i++) {
+			free.add(new HeatShrinkTokens(batchSize));
+		}
+		HeatShrinkTokens end = new HeatShrinkTokens(1);
+		Search search = new Search(is, free, full, end);
+		Thread worker = new Thread(search, "heatshrink-search");
+		worker.setDaemon(true);
+		worker.start();
+		HeatShrinkTokenWriter writer = new HeatShrinkTokenWriter(windowSize, lookAhead, extended, os);
+		boolean done = false;
+		try {
+			while (true) {
+				HeatShrinkTokens batch = full.take();
+				if (batch == end) {
+					break;
+				}
+				writer.write(batch);
+				batch.clear();
+				free.put(batch);
+			}
+			if (search.error != null) {
+				throw new IOException("encoding failed", search.error);
+			}
+			writer.finish();
+			done = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted");
+		} finally {
+			if (!done) {
+				worker.interrupt();
+			}
+		}
+	}
+
+	/* first stage, reads the input and searches matches */
+	private class Search implements Runnable {
+		private final InputStream is;
+		private final BlockingQueue<HeatShrinkTokens> free;
+		private final BlockingQueue<HeatShrinkTokens> full;
+		private final HeatShrinkTokens end;
+		volatile Throwable error;
+
+		Search(InputStream is, BlockingQueue<HeatShrinkTokens> free, BlockingQueue<HeatShrinkTokens> full, HeatShrinkTokens end) {
+			this.is = is;
+			this.free = free;
+			this.full = full;
+			this.end = end;
+		}
+
+		@Override
+		public void run() {
+			try {
+				search();
+			} catch (InterruptedException e) {
+				return; // the writer gave up
+			} catch (Throwable e) {
+				log.debug("-- search failed", e);
+				error = e;
+			}
+			/* full has room for the end marker besides all batches */
+			full.add(end);
+		}
+
+		private void search() throws IOException, InterruptedException {
+			HeatShrinkEncoder encoder = new HeatShrinkEncoder(windowSize, lookAhead,
+					windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS, extended);
+			if (searchPreset != null) {
+				encoder.setSearchPreset(searchPreset);
+			}
+			byte[] in = new byte[1 << 12];
+			int offset = 0;
+			int len = 0;
+			boolean eof = false;
+			HeatShrinkTokens batch = free.take();
+			while (true) {
+				if (offset == len && !eof) {
+					len = is.read(in);
+					offset = 0;
+					if (len < 0) {
+						len = 0;
+						eof = true;
+						encoder.finish();
+					}
+				}
+				if (offset < len) {
+					offset += encoder.sink(in, offset, len - offset).count;
+				}
+				Result res;
+				do {
+					res = encoder.pollTokens(batch);
+					if (res.isError()) throw new RuntimeException("error poll");
+					if (batch.isFull()) {
+						full.put(batch);
+						batch = free.take();
+					}
+				} while (res.code == MORE);
+				if (eof) {
+					break;
+				}
+			}
+			if (batch.size() > 0) {
+				full.put(batch);
+			}
+		}
+	}
+}
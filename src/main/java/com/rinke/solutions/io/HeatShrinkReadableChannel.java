@@ -0,0 +1,134 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * channel that reads from a source channel and delivers its bytes encoded or
+ * decoded. Source data is read into a direct buffer, reads into direct or
+ * heap buffers need no further staging. Closing it closes the source.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkReadableChannel implements ReadableByteChannel {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final ReadableByteChannel source;
+	private final HeatShrinkCodec codec;
+	private final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private boolean eof;
+	private boolean open = true;
+
+	/**
+	 * deliver the compressed source, the encoder must be freshly reset.
+	 */
+	public HeatShrinkReadableChannel(ReadableByteChannel source, HeatShrinkEncoder encoder) {
+		this(source, (HeatShrinkCodec) encoder);
+	}
+
+	/**
+	 * deliver the decompressed source, the decoder must be freshly reset.
+	 */
+	public HeatShrinkReadableChannel(ReadableByteChannel source, HeatShrinkDecoder decoder) {
+		this(source, (HeatShrinkCodec) decoder);
+	}
+
+	private HeatShrinkReadableChannel(ReadableByteChannel source, HeatShrinkCodec codec) {
+		if (source == null || codec == null) {
+			throw new IllegalArgumentException("source and codec must not be null");
+		}
+		this.source = source;
+		this.codec = codec;
+		((Buffer) in).flip(); // empty
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int count = 0;
+		while (dst.hasRemaining()) {
+			Result res = codec.poll(dst);
+			if (res.isError()) throw new IOException("error poll");
+			if (res.code == ABORTED) throw new IOException("encoding aborted, input looks incompressible");
+			count += res.count;
+			if (res.code == MORE) {
+				break; // dst is full
+			}
+			if (in.hasRemaining()) {
+				if (codec.sink(in).isError()) throw new IOException("error sink");
+				continue;
+			}
+			if (count > 0) {
+				break; // return what we have before reading again
+			}
+			if (eof) {
+				Result fin = codec.finish();
+				if (fin.code == ABORTED) throw new IOException("encoding aborted, input looks incompressible");
+				if (fin.code == DONE) {
+					return -1;
+				}
+				continue;
+			}
+			((Buffer) in).clear();
+			int n = source.read(in);
+			((Buffer) in).flip();
+			if (n < 0) {
+				eof = true;
+			} else if (n == 0) {
+				break; // non blocking source has nothing
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * read everything into target, a FileChannel is written from its current
+	 * position via transferFrom.
+	 * @return number of bytes transferred
+	 */
+	public long transferTo(WritableByteChannel target) throws IOException {
+		long total = 0;
+		if (target instanceof FileChannel) {
+			FileChannel fc = (FileChannel) target;
+			long pos = fc.position();
+			long n;
+			while ((n = fc.transferFrom(this, pos, BUFFER_SIZE)) > 0) {
+				pos += n;
+				total += n;
+			}
+			fc.position(pos);
+			return total;
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		while (read(buf) >= 0) {
+			((Buffer) buf).flip();
+			while (buf.hasRemaining()) {
+				total += target.write(buf);
+			}
+			((Buffer) buf).clear();
+		}
+		return total;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (open) {
+			open = false;
+			source.close();
+		}
+	}
+}
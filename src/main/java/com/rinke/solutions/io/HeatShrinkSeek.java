@@ -0,0 +1,126 @@
+package com.rinke.solutions.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * command line for HeatShrinkIndex: builds FILE.idx for a compressed file or,
+ * with -r, writes an uncompressed range of it to stdout through the index.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkSeek {
+
+	@Option(name = "-w", aliases = "--window", metaVar = "BITS", usage = "window size in bits")
+	int windowSize = 10;
+
+	@Option(name = "-l", aliases = "--lookahead", metaVar = "BITS", usage = "lookahead size in bits")
+	int lookAhead = 5;
+
+	@Option(name = "-x", aliases = "--extended", usage = "extended format, windows up to 24 bits")
+	boolean extended;
+
+	@Option(name = "-s", aliases = "--spacing", metaVar = "BYTES", usage = "uncompressed bytes between access points")
+	int spacing = HeatShrinkIndex.DEFAULT_SPACING;
+
+	@Option(name = "-r", aliases = "--range", metaVar = "OFFSET:LENGTH", usage = "write the uncompressed range to stdout using the index")
+	String range;
+
+	@Argument(metaVar = "FILE", usage = "compressed file, the index is FILE" + HeatShrinkIndex.SUFFIX, required = true)
+	String file;
+
+	long offset;
+	long length;
+
+	public static void main(String[] args) throws Exception {
+		HeatShrinkSeek seek = new HeatShrinkSeek();
+		CmdLineParser parser = new CmdLineParser(seek);
+		try {
+			parser.parseArgument(args);
+			seek.parseRange(parser);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: HeatShrinkSeek [options] FILE");
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+		if (seek.range == null) {
+			HeatShrinkIndex index = seek.buildIndex();
+			System.err.println(seek.file + HeatShrinkIndex.SUFFIX + ": " + index.size() + " access points for " + index.getLength() + " bytes");
+		} else {
+			seek.writeRange(System.out);
+		}
+	}
+
+	private void parseRange(CmdLineParser parser) throws CmdLineException {
+		if (range == null) {
+			return;
+		}
+		String[] parts = range.split(":");
+		try {
+			if (parts.length == 2) {
+				offset = Long.parseLong(parts[0]);
+				length = Long.parseLong(parts[1]);
+			}
+		} catch (NumberFormatException e) {
+			parts = null;
+		}
+		if (parts == null || parts.length != 2 || offset < 0 || length < 0) {
+			throw new CmdLineException(parser, "range must be OFFSET:LENGTH", null);
+		}
+	}
+
+	HeatShrinkIndex buildIndex() throws IOException {
+		HeatShrinkIndex index;
+		InputStream is = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+		try {
+			index = HeatShrinkIndex.build(is, windowSize, lookAhead, extended, spacing);
+		} finally {
+			is.close();
+		}
+		OutputStream os = new BufferedOutputStream(new FileOutputStream(file + HeatShrinkIndex.SUFFIX));
+		try {
+			index.write(os);
+		} finally {
+			os.close();
+		}
+		return index;
+	}
+
+	/* one seek, then the range is streamed through a single decoder */
+	void writeRange(OutputStream os) throws IOException {
+		HeatShrinkIndex index;
+		InputStream is = new BufferedInputStream(new FileInputStream(file + HeatShrinkIndex.SUFFIX));
+		try {
+			index = HeatShrinkIndex.read(is);
+		} finally {
+			is.close();
+		}
+		FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		try {
+			InputStream range = index.openStream(channel, offset);
+			byte[] buf = new byte[1 << 16];
+			long left = length;
+			int n;
+			while (left > 0 && (n = range.read(buf, 0, (int) Math.min(left, buf.length))) >= 0) {
+				os.write(buf, 0, n);
+				left -= n;
+			}
+			os.flush();
+		} finally {
+			channel.close();
+		}
+	}
+}
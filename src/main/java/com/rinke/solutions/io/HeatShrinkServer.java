@@ -0,0 +1,383 @@
+package com.rinke.solutions.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * long running compression service on the loopback interface, so processes
+ * outside the JVM need not start one per file. Request and response bodies
+ * are streamed:
+ * <pre>
+ * POST /compress?w=10&amp;l=5     body is compressed
+ * POST /decompress?w=10&amp;l=5   body is decompressed
+ * GET  /stats                 counters, one "name value" per line
+ * </pre>
+ * w and l default to 10 and 5, x=1 selects the extended format and s a
+ * search preset. Windows above the configured maximum are refused with 400.
+ * Each request runs on a virtual thread if the JVM has them (java 21), on a
+ * pooled platform thread otherwise. Encoders and decoders are pooled per
+ * parameter set and reset for the next request. All codecs, pooled and in
+ * use, share a memory limit: idle ones are dropped to make room for a new
+ * one, if that is not enough the request is refused with 503.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkServer {
+
+	private static final Logger log = LoggerFactory.getLogger(HeatShrinkServer.class);
+
+	/* idle codecs kept per parameter set */
+	private static final int MAX_IDLE = 64;
+
+	/* input buffer of pooled decoders */
+	private static final int INPUT_SIZE = 1024;
+
+	@Option(name = "-p", aliases = "--port", metaVar = "PORT", usage = "port on the loopback interface, 0 for any free one")
+	int port = 7311;
+
+	@Option(name = "-w", aliases = "--max-window", metaVar = "BITS", usage = "largest window in bits a request may use")
+	int maxWindow = HeatShrinkEncoder.MAX_WINDOW_BITS;
+
+	@Option(name = "-m", aliases = "--memory", metaVar = "MB", usage = "heap for codecs, pooled and in use")
+	int memory = 256;
+
+	private HttpServer server;
+	private ExecutorService executor;
+
+	private final ConcurrentMap<String, Pool> pools = new ConcurrentHashMap<String, Pool>();
+	/* estimated heap of all codecs, pooled and in use */
+	private final AtomicLong reserved = new AtomicLong();
+
+	private final long started = System.nanoTime();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong active = new AtomicLong();
+	private final AtomicLong bytesIn = new AtomicLong();
+	private final AtomicLong bytesOut = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	public HeatShrinkServer() {
+		super();
+	}
+
+	/**
+	 * @param port port on the loopback interface, 0 for any free one
+	 */
+	public HeatShrinkServer(int port) {
+		this.port = port;
+	}
+
+	public static void main(String[] args) throws Exception {
+		HeatShrinkServer server = new HeatShrinkServer();
+		CmdLineParser parser = new CmdLineParser(server);
+		try {
+			parser.parseArgument(args);
+		} catch (CmdLineException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: HeatShrinkServer [options]");
+			parser.printUsage(System.err);
+			System.exit(1);
+		}
+		server.start();
+		System.err.println("listening on " + server.getAddress());
+	}
+
+	public synchronized void start() throws IOException {
+		if (server != null) {
+			throw new IllegalStateException("already started");
+		}
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		executor = newExecutor();
+		server.setExecutor(executor);
+		server.createContext("/compress", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				process(exchange, true);
+			}
+		});
+		server.createContext("/decompress", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				process(exchange, false);
+			}
+		});
+		server.createContext("/stats", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, 200, stats());
+			}
+		});
+		server.start();
+		log.debug("-- listening on {}", server.getAddress());
+	}
+
+	/**
+	 * stops accepting requests and waits up to delay seconds for running ones.
+	 */
+	public synchronized void stop(int delay) {
+		if (server != null) {
+			server.stop(delay);
+			executor.shutdown();
+			server = null;
+		}
+	}
+
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
+	}
+
+	/* virtual threads where available, the service is built for java 8 */
+	static ExecutorService newExecutor() {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "heatshrink-server");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	private void process(HttpExchange exchange, boolean encode) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			respond(exchange, 405, "POST required\n");
+			return;
+		}
+		Params params;
+		try {
+			params = new Params(exchange.getRequestURI());
+		} catch (IllegalArgumentException e) {
+			failures.incrementAndGet();
+			respond(exchange, 400, e.getMessage() + "\n");
+			return;
+		}
+		if (params.windowSize > maxWindow) {
+			failures.incrementAndGet();
+			respond(exchange, 400, "window larger than " + maxWindow + " bits\n");
+			return;
+		}
+		Pool pool = pool(encode, params);
+		Object codec = pool.idle.poll();
+		if (codec == null) {
+			if (!reserve(pool.footprint)) {
+				failures.incrementAndGet();
+				respond(exchange, 503, "out of codec memory\n");
+				return;
+			}
+			codec = encode ? newEncoder(params) : new HeatShrinkDecoder(params.windowSize, params.lookAhead, INPUT_SIZE, params.extended);
+		}
+		long start = System.nanoTime();
+		active.incrementAndGet();
+		HeatShrink.CountingInputStream is = new HeatShrink.CountingInputStream(exchange.getRequestBody());
+		HeatShrink.CountingOutputStream os = new HeatShrink.CountingOutputStream(exchange.getResponseBody());
+		boolean ok = false;
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+			exchange.sendResponseHeaders(200, 0); // chunked
+			if (encode) {
+				HeatShrinkEncoder encoder = (HeatShrinkEncoder) codec;
+				encoder.encode(is, os);
+				encoder.reset();
+			} else {
+				HeatShrinkDecoder decoder = (HeatShrinkDecoder) codec;
+				decoder.decode(is, os);
+				decoder.reset();
+			}
+			ok = true;
+		} catch (RuntimeException e) {
+			/* the status is sent already, a truncated body tells the client */
+			log.debug("-- request failed", e);
+		} finally {
+			active.decrementAndGet();
+			/* a codec goes back to the pool, reset, only after a complete request */
+			if (ok && pool.idle.size() < MAX_IDLE) {
+				pool.idle.offer(codec);
+			} else {
+				reserved.addAndGet(-pool.footprint);
+			}
+			if (ok) {
+				os.flush();
+			} else {
+				failures.incrementAndGet();
+			}
+			exchange.close();
+			long nanos = System.nanoTime() - start;
+			requests.incrementAndGet();
+			bytesIn.addAndGet(is.count);
+			bytesOut.addAndGet(os.count);
+			totalNanos.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+				// retry
+			}
+		}
+	}
+
+	private static HeatShrinkEncoder newEncoder(Params p) {
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(p.windowSize, p.lookAhead, p.windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS, p.extended);
+		if (p.searchPreset != null) encoder.setSearchPreset(p.searchPreset);
+		return encoder;
+	}
+
+	private Pool pool(boolean encode, Params p) {
+		String key = (encode ? "e/" : "d/") + p.key;
+		Pool pool = pools.get(key);
+		if (pool == null) {
+			Pool created = new Pool(encode ? encoderFootprint(p.windowSize) : decoderFootprint(p.windowSize));
+			pool = pools.putIfAbsent(key, created);
+			if (pool == null) {
+				pool = created;
+			}
+		}
+		return pool;
+	}
+
+	/* codec plus the stream buffers of encode */
+	static long encoderFootprint(int windowSize) {
+		return HeatShrinkEncoder.heapFootprint(windowSize, windowSize <= HeatShrinkEncoder.MAX_WINDOW_BITS)
+				+ HeatShrinkEncoder.arraySize(1024, 1) + HeatShrinkEncoder.arraySize(4096, 1);
+	}
+
+	/* window and input buffer, scratch and the stream buffers of decode */
+	static long decoderFootprint(int windowSize) {
+		return 96 + HeatShrinkEncoder.arraySize((1 << windowSize) + INPUT_SIZE, 1) + HeatShrinkEncoder.arraySize(1 << 13, 1)
+				+ HeatShrinkEncoder.arraySize(5 << Math.min(windowSize, 16), 1);
+	}
+
+	/* counts a new codec against the memory limit, drops idle ones to make room */
+	private boolean reserve(long size) {
+		long limit = (long) memory << 20;
+		while (true) {
+			long used = reserved.get();
+			if (used + size <= limit) {
+				if (reserved.compareAndSet(used, used + size)) {
+					return true;
+				}
+			} else if (!evictIdle()) {
+				log.debug("-- {} bytes of codecs in use, refusing {} more", used, size);
+				return false;
+			}
+		}
+	}
+
+	private boolean evictIdle() {
+		for (Pool pool : pools.values()) {
+			if (pool.idle.poll() != null) {
+				reserved.addAndGet(-pool.footprint);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return counters since start, one "name value" per line
+	 */
+	public String stats() {
+		double secs = Math.max(1e-9, (System.nanoTime() - started) / 1e9);
+		long n = requests.get();
+		StringBuilder sb = new StringBuilder();
+		sb.append("requests ").append(n).append('\n');
+		sb.append("failures ").append(failures.get()).append('\n');
+		sb.append("active ").append(active.get()).append('\n');
+		sb.append("codec_bytes ").append(reserved.get()).append('\n');
+		sb.append("bytes_in ").append(bytesIn.get()).append('\n');
+		sb.append("bytes_out ").append(bytesOut.get()).append('\n');
+		sb.append(String.format(Locale.ROOT, "throughput_mb_s %.3f%n", bytesIn.get() / 1e6 / secs));
+		sb.append(String.format(Locale.ROOT, "latency_avg_ms %.3f%n", n == 0 ? 0.0 : totalNanos.get() / 1e6 / n));
+		sb.append(String.format(Locale.ROOT, "latency_max_ms %.3f%n", maxNanos.get() / 1e6));
+		return sb.toString();
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+		drain(exchange.getRequestBody());
+	}
+
+	private static void drain(InputStream is) throws IOException {
+		byte[] buf = new byte[1024];
+		while (is.read(buf) >= 0) {
+			// skip
+		}
+		is.close();
+	}
+
+	/* idle codecs of one parameter set, each takes about footprint bytes */
+	private static class Pool {
+		final long footprint;
+		final Queue<Object> idle = new ConcurrentLinkedQueue<Object>();
+
+		Pool(long footprint) {
+			this.footprint = footprint;
+		}
+	}
+
+	/* codec parameters of a request */
+	private static class Params {
+		int windowSize = 10;
+		int lookAhead = 5;
+		boolean extended;
+		HeatShrinkEncoder.SearchPreset searchPreset;
+		final String key;
+
+		Params(URI uri) {
+			Map<String, String> query = new HashMap<String, String>();
+			String raw = uri.getRawQuery();
+			if (raw != null) {
+				for (String pair : raw.split("&")) {
+					int eq = pair.indexOf('=');
+					if (eq > 0) query.put(pair.substring(0, eq), pair.substring(eq + 1));
+				}
+			}
+			try {
+				if (query.containsKey("w")) windowSize = Integer.parseInt(query.get("w"));
+				if (query.containsKey("l")) lookAhead = Integer.parseInt(query.get("l"));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("w and l must be numbers");
+			}
+			extended = "1".equals(query.get("x")) || "true".equals(query.get("x"));
+			if (query.containsKey("s")) {
+				searchPreset = HeatShrinkEncoder.SearchPreset.valueOf(query.get("s").toUpperCase(Locale.ROOT));
+			}
+			HeatShrinkEncoder.checkParams(windowSize, lookAhead, extended);
+			key = windowSize + "/" + lookAhead + "/" + extended + "/" + searchPreset;
+		}
+	}
+}
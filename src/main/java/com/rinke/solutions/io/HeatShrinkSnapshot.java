@@ -0,0 +1,95 @@
+package com.rinke.solutions.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * binary format of encoder and decoder snapshots:
+ * <pre>
+ * snapshot := 'H' 'S' type version windowBits lookaheadBits fields
+ * type     := 'E' (encoder) | 'D' (decoder)
+ * </pre>
+ * the fields are written by the codec, big endian. Byte ranges are stored as
+ * the number of leading zeros, the length of the rest and the rest, as windows
+ * that are not filled yet are zero in front.
+ * @author Stefan Rinke
+ */
+final class HeatShrinkSnapshot {
+
+	static final int TYPE_ENCODER = 'E';
+	static final int TYPE_DECODER = 'D';
+	static final int VERSION = 1;
+
+	private HeatShrinkSnapshot() {
+	}
+
+	static class Writer extends DataOutputStream {
+		Writer(int type, int windowSize, int lookAhead) {
+			super(new ByteArrayOutputStream(64));
+			try {
+				write('H');
+				write('S');
+				write(type);
+				write(VERSION);
+				write(windowSize);
+				write(lookAhead);
+			} catch (IOException e) {
+				throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+			}
+		}
+
+		void writeRange(byte[] buf, int offset, int len) throws IOException {
+			int zeros = 0;
+			while (zeros < len && buf[offset + zeros] == 0) {
+				zeros++;
+			}
+			writeInt(zeros);
+			writeInt(len - zeros);
+			write(buf, offset + zeros, len - zeros);
+		}
+
+		byte[] toByteArray() {
+			return ((ByteArrayOutputStream) out).toByteArray();
+		}
+	}
+
+	static class Reader extends DataInputStream {
+		/**
+		 * @throws IllegalArgumentException if the snapshot is not of type or the parameters differ
+		 */
+		Reader(byte[] snapshot, int type, int windowSize, int lookAhead) {
+			super(new ByteArrayInputStream(snapshot));
+			if (snapshot.length < 6 || snapshot[0] != 'H' || snapshot[1] != 'S' || snapshot[2] != type) {
+				throw new IllegalArgumentException("not a " + (type == TYPE_ENCODER ? "encoder" : "decoder") + " snapshot");
+			}
+			if (snapshot[3] != VERSION) {
+				throw new IllegalArgumentException("unsupported snapshot version " + snapshot[3]);
+			}
+			if (snapshot[4] != windowSize || snapshot[5] != lookAhead) {
+				throw new IllegalArgumentException("snapshot of window " + snapshot[4] + ", lookahead " + snapshot[5]
+						+ " does not match " + windowSize + ", " + lookAhead);
+			}
+			try {
+				skipBytes(6);
+			} catch (IOException e) {
+				throw new IllegalStateException(e); // not thrown by ByteArrayInputStream
+			}
+		}
+
+		/* reads a range of at most max bytes into buf at offset, returns its length */
+		int readRange(byte[] buf, int offset, int max) throws IOException {
+			int zeros = readInt();
+			int len = readInt();
+			if (zeros < 0 || len < 0 || zeros > max - len) {
+				throw new IllegalArgumentException("corrupt snapshot, range of " + zeros + " + " + len + " bytes");
+			}
+			Arrays.fill(buf, offset, offset + zeros, (byte) 0);
+			readFully(buf, offset + zeros, len);
+			return zeros + len;
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package com.rinke.solutions.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * packs tokens into a heatshrink bitstream, the back end of the encoder when
+ * match search and bit packing run apart (see HeatShrinkEncoder.pollTokens).
+ * The tokens of a whole stream give the same bytes HeatShrinkEncoder.poll does.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkTokenWriter {
+
+	private final int windowSize;
+	private final int lookAhead;
+	private final OutputStream os;
+
+	private final byte[] buf = new byte[1 << 13];
+	private int pos;
+	private long bits; /* pending bits, msb first */
+	private int bitCount;
+	private boolean finished;
+
+	public HeatShrinkTokenWriter(int windowSize, int lookAhead, OutputStream os) {
+		this(windowSize, lookAhead, false, os);
+	}
+
+	/**
+	 * @param extended allow windows beyond 15 bits
+	 */
+	public HeatShrinkTokenWriter(int windowSize, int lookAhead, boolean extended, OutputStream os) {
+		super();
+		HeatShrinkEncoder.checkParams(windowSize, lookAhead, extended);
+		if (os == null) {
+			throw new IllegalArgumentException("os must not be null");
+		}
+		this.windowSize = windowSize;
+		this.lookAhead = lookAhead;
+		this.os = os;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if a backref does not fit window or lookahead
+	 */
+	public void write(HeatShrinkTokens tokens) throws IOException {
+		if (finished) {
+			throw new IllegalStateException("writer is already finished");
+		}
+		int maxDistance = 1 << windowSize;
+		int maxLength = 1 << lookAhead;
+		for (int i = 0; i < tokens.size(); i++) {
+			int distance = tokens.distanceAt(i);
+			int value = tokens.valueAt(i);
+			if (distance == 0) {
+				push(0x100 | value, 9);
+			} else {
+				if (distance > maxDistance || value > maxLength) {
+					throw new IllegalArgumentException("backref " + distance + "/" + value + " out of range");
+				}
+				push(distance - 1, 1 + windowSize);
+				push(value - 1, lookAhead);
+			}
+		}
+	}
+
+	private void push(int value, int count) throws IOException {
+		bits = bits << count | value;
+		bitCount += count;
+		while (bitCount >= 8) {
+			if (pos == buf.length) {
+				os.write(buf, 0, pos);
+				pos = 0;
+			}
+			bitCount -= 8;
+			buf[pos++] = (byte) (bits >>> bitCount);
+		}
+	}
+
+	/**
+	 * pads the last byte with zeros like the encoder and writes out what is left.
+	 * The underlying stream is flushed, not closed.
+	 */
+	public void finish() throws IOException {
+		if (!finished) {
+			if (bitCount > 0) {
+				push(0, 8 - bitCount);
+			}
+			finished = true;
+		}
+		os.write(buf, 0, pos);
+		pos = 0;
+		os.flush();
+	}
+}
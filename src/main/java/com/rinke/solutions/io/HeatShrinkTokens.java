@@ -0,0 +1,115 @@
+package com.rinke.solutions.io;
+
+/**
+ * batch of tokens as found by the match search of HeatShrinkEncoder.pollTokens,
+ * before they are packed into bits by HeatShrinkTokenWriter. A token is either
+ * a literal byte or a backref of distance and length, distance 1 being the byte
+ * just before. Tokens can be counted for statistics, packed by other back ends
+ * or re-encoded. Batches are meant to be cleared and reused.
+ * @author Stefan Rinke
+ */
+public final class HeatShrinkTokens {
+
+	/* distance 0 marks a literal, its byte is the value */
+	private final int[] distances;
+	private final int[] values;
+	private int count;
+
+	/**
+	 * @param capacity max number of tokens
+	 */
+	public HeatShrinkTokens(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		distances = new int[capacity];
+		values = new int[capacity];
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int capacity() {
+		return distances.length;
+	}
+
+	public boolean isFull() {
+		return count == distances.length;
+	}
+
+	public void clear() {
+		count = 0;
+	}
+
+	public void addLiteral(int b) {
+		checkNotFull();
+		distances[count] = 0;
+		values[count++] = b & 0xFF;
+	}
+
+	/**
+	 * @param distance 1 for the byte just before
+	 * @param length number of bytes copied, at least 1. A backref of distance 1
+	 * and length 1 is valid, but decoders with sync markers enabled skip it
+	 * (see HeatShrinkEncoder.setSyncMarkers)
+	 */
+	public void addBackref(int distance, int length) {
+		if (distance < 1 || length < 1) {
+			throw new IllegalArgumentException("distance and length must be positive");
+		}
+		checkNotFull();
+		distances[count] = distance;
+		values[count++] = length;
+	}
+
+	private void checkNotFull() {
+		if (count == distances.length) {
+			throw new IllegalStateException("tokens are full");
+		}
+	}
+
+	public boolean isLiteral(int i) {
+		checkIndex(i);
+		return distances[i] == 0;
+	}
+
+	/**
+	 * @return the byte of literal i, 0 to 255, or -1 for a backref
+	 */
+	public int getLiteral(int i) {
+		checkIndex(i);
+		return distances[i] == 0 ? values[i] : -1;
+	}
+
+	/**
+	 * @return the distance of backref i, 0 for a literal
+	 */
+	public int getDistance(int i) {
+		checkIndex(i);
+		return distances[i];
+	}
+
+	/**
+	 * @return number of bytes token i stands for, 1 for a literal
+	 */
+	public int getLength(int i) {
+		checkIndex(i);
+		return distances[i] == 0 ? 1 : values[i];
+	}
+
+	private void checkIndex(int i) {
+		if (i < 0 || i >= count) {
+			throw new IndexOutOfBoundsException("index " + i + ", size " + count);
+		}
+	}
+
+	/* unchecked access for the writer */
+	int distanceAt(int i) {
+		return distances[i];
+	}
+
+	int valueAt(int i) {
+		return values[i];
+	}
+}
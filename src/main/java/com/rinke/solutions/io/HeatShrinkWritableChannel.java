@@ -0,0 +1,153 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * channel that encodes or decodes everything written to it into a target
+ * channel, e.g. a FileChannel or SocketChannel. Closing it finishes the
+ * stream and closes the target. Direct buffers are copied straight into the
+ * input buffer of the codec, without an intermediate array. This is not zero
+ * copy: FileChannel.transferTo into a channel other than the JDK's own reads
+ * the file through a temporary buffer, which is then copied into the codec.
+ * @author Stefan Rinke
+ */
+public class HeatShrinkWritableChannel implements WritableByteChannel {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final WritableByteChannel target;
+	private final HeatShrinkCodec codec;
+	private final ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+	private boolean open = true;
+
+	/**
+	 * compress into target, the encoder must be freshly reset.
+	 */
+	public HeatShrinkWritableChannel(WritableByteChannel target, HeatShrinkEncoder encoder) {
+		this(target, (HeatShrinkCodec) encoder);
+	}
+
+	/**
+	 * decompress into target, the decoder must be freshly reset.
+	 */
+	public HeatShrinkWritableChannel(WritableByteChannel target, HeatShrinkDecoder decoder) {
+		this(target, (HeatShrinkCodec) decoder);
+	}
+
+	private HeatShrinkWritableChannel(WritableByteChannel target, HeatShrinkCodec codec) {
+		if (target == null || codec == null) {
+			throw new IllegalArgumentException("target and codec must not be null");
+		}
+		this.target = target;
+		this.codec = codec;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		int n = src.remaining();
+		while (src.hasRemaining()) {
+			Result res = codec.sink(src);
+			if (res.isError()) throw new IOException("error sink");
+			drain();
+		}
+		return n;
+	}
+
+	/**
+	 * write everything src delivers until its end, a FileChannel is
+	 * transferred from its current position.
+	 * @return number of bytes transferred
+	 */
+	public long transferFrom(ReadableByteChannel src) throws IOException {
+		long total = 0;
+		if (src instanceof FileChannel) {
+			FileChannel fc = (FileChannel) src;
+			long pos = fc.position();
+			long size = fc.size();
+			while (pos < size) {
+				long n = fc.transferTo(pos, size - pos, this);
+				if (n <= 0) break;
+				pos += n;
+				total += n;
+			}
+			fc.position(pos);
+			return total;
+		}
+		ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		while (src.read(buf) >= 0) {
+			((Buffer) buf).flip();
+			total += write(buf);
+			((Buffer) buf).clear();
+		}
+		return total;
+	}
+
+	/**
+	 * writes the encoded form of everything written so far to the target,
+	 * without ending the stream, see HeatShrinkEncoder.flush.
+	 * @throws IllegalStateException if the channel decodes
+	 */
+	public void flush() throws IOException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+		if (!(codec instanceof HeatShrinkEncoder)) {
+			throw new IllegalStateException("only an encoding channel can be flushed");
+		}
+		if (((HeatShrinkEncoder) codec).flush().code == ABORTED) {
+			throw new IOException("encoding aborted, input looks incompressible");
+		}
+		drain();
+	}
+
+	/* poll all available output and write it to the target */
+	private void drain() throws IOException {
+		Result res;
+		do {
+			res = codec.poll(out);
+			if (res.isError()) throw new IOException("error poll");
+			if (res.code == ABORTED) throw new IOException("encoding aborted, input looks incompressible");
+			((Buffer) out).flip();
+			while (out.hasRemaining()) {
+				target.write(out);
+			}
+			((Buffer) out).clear();
+		} while (res.code == MORE);
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * finishes the stream, writes the remaining output and closes the target.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!open) {
+			return;
+		}
+		open = false;
+		try {
+			Result res;
+			while ((res = codec.finish()).code == MORE) {
+				drain();
+			}
+			if (res.code == ABORTED) throw new IOException("encoding aborted, input looks incompressible");
+		} finally {
+			target.close();
+		}
+	}
+}
@@ -16,6 +16,7 @@ public class Result {
 		EMPTY(false), /* input exhausted */
 		MORE(false), /* poll again for more output */
 		DONE(false), /* encoding is complete */
+		ABORTED(false), /* encoding aborted, input looks incompressible */
 		ERROR_NULL(true), /* NULL argument */
 		ERROR_MISUSE(true),
 		ERROR_UNKNOWN(true);
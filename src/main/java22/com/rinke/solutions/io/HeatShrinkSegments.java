@@ -0,0 +1,219 @@
+package com.rinke.solutions.io;
+
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * compression of foreign memory: mapped files, off heap arenas or native
+ * buffers. Offsets are longs, so sources and destinations may exceed 2 GB.
+ * Input is copied straight from the segment into the codec's input buffer,
+ * output is staged in a small heap buffer. Needs java 22, the class is part
+ * of the multi release jar only.
+ * @author Stefan Rinke
+ */
+public final class HeatShrinkSegments {
+
+	private static final int CHUNK = 1 << 16;
+
+	private HeatShrinkSegments() {
+	}
+
+	/**
+	 * @param size uncompressed size
+	 * @return upper bound of the compressed size: 9 bits per byte plus padding
+	 */
+	public static long maxCompressedSize(long size) {
+		return size + (size + 7) / 8 + 1;
+	}
+
+	/**
+	 * compress src into dst.
+	 * @return number of bytes written to dst
+	 * @throws IndexOutOfBoundsException if dst is too small, maxCompressedSize is always enough
+	 */
+	public static long compress(MemorySegment src, MemorySegment dst, int windowSize, int lookAhead) {
+		return compress(new HeatShrinkEncoder(windowSize, lookAhead), src, new SegmentSink(dst));
+	}
+
+	/**
+	 * compress src into a segment allocated from arena. The segment is
+	 * allocated with maxCompressedSize and sliced to the compressed size.
+	 */
+	public static MemorySegment compress(MemorySegment src, Arena arena, int windowSize, int lookAhead) {
+		MemorySegment dst = arena.allocate(maxCompressedSize(src.byteSize()));
+		return dst.asSlice(0, compress(src, dst, windowSize, lookAhead));
+	}
+
+	/**
+	 * compress src to a channel, e.g. a FileChannel or SocketChannel.
+	 * @return number of bytes written
+	 */
+	public static long compress(MemorySegment src, WritableByteChannel out, int windowSize, int lookAhead) throws IOException {
+		ChannelSink sink = new ChannelSink(out);
+		try {
+			return compress(new HeatShrinkEncoder(windowSize, lookAhead), src, sink);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * compress a file of any size via memory mapping.
+	 * @return compressed size
+	 */
+	public static long compress(Path in, Path out, int windowSize, int lookAhead) throws IOException {
+		long written;
+		try (FileChannel ic = FileChannel.open(in, StandardOpenOption.READ);
+				FileChannel oc = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.READ,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			try (Arena arena = Arena.ofConfined()) {
+				MemorySegment src = ic.map(MapMode.READ_ONLY, 0, ic.size(), arena);
+				MemorySegment dst = oc.map(MapMode.READ_WRITE, 0, maxCompressedSize(ic.size()), arena);
+				written = compress(src, dst, windowSize, lookAhead);
+			}
+			/* the mapping is released with the arena, now the file can shrink */
+			oc.truncate(written);
+		}
+		return written;
+	}
+
+	/**
+	 * decompress src into dst.
+	 * @return number of bytes written to dst
+	 * @throws IndexOutOfBoundsException if dst is too small
+	 */
+	public static long decompress(MemorySegment src, MemorySegment dst, int windowSize, int lookAhead) {
+		return decompress(new HeatShrinkDecoder(windowSize, lookAhead, CHUNK), src, new SegmentSink(dst));
+	}
+
+	/**
+	 * decompress src to a channel.
+	 * @return number of bytes written
+	 */
+	public static long decompress(MemorySegment src, WritableByteChannel out, int windowSize, int lookAhead) throws IOException {
+		ChannelSink sink = new ChannelSink(out);
+		try {
+			return decompress(new HeatShrinkDecoder(windowSize, lookAhead, CHUNK), src, sink);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * decompress a file of any size, the input is memory mapped.
+	 * @return decompressed size
+	 */
+	public static long decompress(Path in, Path out, int windowSize, int lookAhead) throws IOException {
+		try (FileChannel ic = FileChannel.open(in, StandardOpenOption.READ);
+				FileChannel oc = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+				Arena arena = Arena.ofConfined()) {
+			return decompress(ic.map(MapMode.READ_ONLY, 0, ic.size(), arena), oc, windowSize, lookAhead);
+		}
+	}
+
+	static long compress(HeatShrinkEncoder encoder, MemorySegment src, Sink sink) {
+		byte[] out = new byte[CHUNK];
+		long size = src.byteSize();
+		long in = 0;
+		while (true) {
+			if (in < size) {
+				int n = (int) Math.min(encoder.sinkCapacity(), size - in);
+				MemorySegment.copy(src, ValueLayout.JAVA_BYTE, in, encoder.sinkBuffer(), encoder.sinkOffset(), n);
+				encoder.sunk(n);
+				in += n;
+			}
+			if (in == size) {
+				encoder.finish();
+			}
+			Result res;
+			do {
+				res = encoder.poll(out);
+				if (res.isError()) throw new RuntimeException("error poll");
+				sink.write(out, res.count);
+			} while (res.code == MORE);
+			if (in == size) {
+				return sink.written;
+			}
+		}
+	}
+
+	static long decompress(HeatShrinkDecoder decoder, MemorySegment src, Sink sink) {
+		byte[] out = new byte[CHUNK];
+		long size = src.byteSize();
+		long in = 0;
+		while (true) {
+			if (in < size) {
+				int n = (int) Math.min(decoder.sinkCapacity(), size - in);
+				MemorySegment.copy(src, ValueLayout.JAVA_BYTE, in, decoder.sinkBuffer(), decoder.sinkOffset(), n);
+				decoder.sunk(n);
+				in += n;
+			}
+			Result res;
+			do {
+				res = decoder.poll(out);
+				if (res.isError()) throw new RuntimeException("error poll");
+				sink.write(out, res.count);
+			} while (res.code == MORE);
+			if (in == size) {
+				return sink.written;
+			}
+		}
+	}
+
+	static abstract class Sink {
+		long written;
+
+		abstract void write(byte[] buf, int len);
+	}
+
+	private static final class SegmentSink extends Sink {
+		private final MemorySegment dst;
+
+		SegmentSink(MemorySegment dst) {
+			this.dst = dst;
+		}
+
+		@Override
+		void write(byte[] buf, int len) {
+			if (written + len > dst.byteSize()) {
+				throw new IndexOutOfBoundsException("destination segment too small");
+			}
+			MemorySegment.copy(buf, 0, dst, ValueLayout.JAVA_BYTE, written, len);
+			written += len;
+		}
+	}
+
+	private static final class ChannelSink extends Sink {
+		private final WritableByteChannel out;
+
+		ChannelSink(WritableByteChannel out) {
+			this.out = out;
+		}
+
+		@Override
+		void write(byte[] buf, int len) {
+			ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+			try {
+				while (bb.hasRemaining()) {
+					out.write(bb);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			written += len;
+		}
+	}
+
+}
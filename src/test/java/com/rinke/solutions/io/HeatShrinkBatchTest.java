@@ -0,0 +1,81 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeatShrinkBatchTest {
+
+	HeatShrinkBatch uut;
+	Random rand = new Random(4711);
+
+	@Before
+	public void setUp() throws Exception {
+		uut = new HeatShrinkBatch(8, 4);
+	}
+
+	private byte[][] records(int n) {
+		byte[][] records = new byte[n][];
+		for (int i = 0; i < n; i++) {
+			records[i] = ("{\"id\":" + rand.nextInt(100000) + ",\"name\":\"record\",\"value\":" + rand.nextInt(10) + "}").getBytes();
+		}
+		return records;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[][] records = records(1000);
+		HeatShrinkBatch.Records encoded = uut.encode(records);
+		assertEquals(records.length, encoded.size());
+		HeatShrinkBatch.Records decoded = uut.decode(encoded);
+		assertEquals(records.length, decoded.size());
+		for (int i = 0; i < records.length; i++) {
+			assertArrayEquals(records[i], decoded.get(i));
+		}
+	}
+
+	@Test
+	public void testRecordsAreStreams() throws Exception {
+		byte[][] records = records(10);
+		HeatShrinkBatch.Records encoded = uut.encode(records);
+		for (int i = 0; i < records.length; i++) {
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			new HeatShrinkDecoder(8, 4, 64).decode(new ByteArrayInputStream(encoded.get(i)), os);
+			assertArrayEquals(records[i], os.toByteArray());
+		}
+	}
+
+	@Test
+	public void testOffsets() throws Exception {
+		byte[] data = "aaaaaaaaaabbbbbbbbbbabcabcabcabc".getBytes();
+		int[] offsets = { 0, 10, 10, 20, 32 };
+		HeatShrinkBatch.Records decoded = uut.decode(uut.encode(new HeatShrinkBatch.Records(data, offsets)));
+		assertArrayEquals(offsets, decoded.getOffsets());
+		assertArrayEquals(data, decoded.getData());
+		assertEquals(0, decoded.length(1));
+	}
+
+	@Test
+	public void testDecoderResetClearsWindow() throws Exception {
+		byte[] random = new byte[2000];
+		rand.nextBytes(random);
+		/* a stream from sink refers to the zero filled window in front of it */
+		byte[] zeros = new byte[300];
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(8, 4);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		encoder.encode(new ByteArrayInputStream(zeros), os);
+		HeatShrinkBatch.Records decoded = uut.decode(new byte[][] { uut.encode(new byte[][] { random }).get(0), os.toByteArray() });
+		assertArrayEquals(random, decoded.get(0));
+		assertArrayEquals(zeros, decoded.get(1));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testBadOffsets() throws Exception {
+		new HeatShrinkBatch.Records(new byte[10], new int[] { 0, 5, 3 });
+	}
+}
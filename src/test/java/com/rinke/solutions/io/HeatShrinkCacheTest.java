@@ -0,0 +1,68 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HeatShrinkCacheTest {
+
+	Random rand = new Random(4711);
+
+	private byte[] blob(int len) {
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++) {
+			data[i] = (byte) ((i / 10) % 17 + rand.nextInt(2));
+		}
+		return data;
+	}
+
+	@Test
+	public void testHit() throws Exception {
+		HeatShrinkCache uut = new HeatShrinkCache(1 << 20);
+		byte[] data = blob(5000);
+		byte[] first = uut.compress(data, 10, 5);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new HeatShrinkEncoder(10, 5).encode(new ByteArrayInputStream(data), bos);
+		assertArrayEquals(bos.toByteArray(), first);
+		first[0] ^= 1; // results are copies
+		assertArrayEquals(bos.toByteArray(), uut.compress(data.clone(), 10, 5));
+		assertEquals(1, uut.getHitCount());
+		assertEquals(1, uut.getMissCount());
+		assertEquals(1, uut.getEntryCount());
+	}
+
+	@Test
+	public void testParamsAreKeys() throws Exception {
+		HeatShrinkCache uut = new HeatShrinkCache(1 << 20);
+		byte[] data = blob(5000);
+		uut.compress(data, 10, 5);
+		uut.compress(data, 11, 5);
+		uut.compress(data, 10, 4);
+		uut.compress(data, 10, 5, HeatShrinkEncoder.SearchPreset.FASTEST);
+		assertEquals(0, uut.getHitCount());
+		assertEquals(4, uut.getEntryCount());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyUsed() throws Exception {
+		byte[] a = blob(5000);
+		byte[] b = blob(5000);
+		byte[] c = blob(5000);
+		HeatShrinkCache uut = new HeatShrinkCache(1 << 20);
+		long entry = uut.compress(a, 10, 5).length + HeatShrinkCache.ENTRY_OVERHEAD;
+		uut = new HeatShrinkCache(2 * entry + 100);
+		uut.compress(a, 10, 5);
+		uut.compress(b, 10, 5);
+		uut.compress(a, 10, 5); // a is more recent than b now
+		uut.compress(c, 10, 5);
+		assertEquals(1, uut.getEvictionCount());
+		assertEquals(2, uut.getEntryCount());
+		assertTrue(uut.getSize() <= uut.getMaxSize());
+		uut.compress(a, 10, 5);
+		assertEquals(2, uut.getHitCount());
+	}
+}
@@ -0,0 +1,111 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeatShrinkChannelsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] data(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ((i / 5) % 31);
+		}
+		return data;
+	}
+
+	@Test
+	public void testFileTransfer() throws Exception {
+		byte[] data = data(300000);
+		File in = folder.newFile("in");
+		File packed = folder.newFile("packed");
+		File out = folder.newFile("out");
+		Files.write(in.toPath(), data);
+		try (FileChannel ic = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+				HeatShrinkWritableChannel wc = new HeatShrinkWritableChannel(
+						FileChannel.open(packed.toPath(), StandardOpenOption.WRITE), new HeatShrinkEncoder(10, 5))) {
+			assertEquals(data.length, wc.transferFrom(ic));
+		}
+		assertArrayEquals(HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(10, 5), data), Files.readAllBytes(packed.toPath()));
+		try (HeatShrinkReadableChannel rc = new HeatShrinkReadableChannel(
+				FileChannel.open(packed.toPath(), StandardOpenOption.READ), new HeatShrinkDecoder(10, 5, 64));
+				FileChannel oc = FileChannel.open(out.toPath(), StandardOpenOption.WRITE)) {
+			assertEquals(data.length, rc.transferTo(oc));
+		}
+		assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+	}
+
+	@Test
+	public void testDirectBuffers() throws Exception {
+		byte[] data = data(100000);
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		try (HeatShrinkWritableChannel wc = new HeatShrinkWritableChannel(Channels.newChannel(packed), new HeatShrinkEncoder(8, 4))) {
+			ByteBuffer src = ByteBuffer.allocateDirect(data.length);
+			src.put(data).flip();
+			assertEquals(data.length, wc.write(src));
+		}
+		HeatShrinkReadableChannel rc = new HeatShrinkReadableChannel(
+				Channels.newChannel(new ByteArrayInputStream(packed.toByteArray())), new HeatShrinkDecoder(8, 4, 32));
+		ByteBuffer dst = ByteBuffer.allocateDirect(777);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int n;
+		while ((n = rc.read(dst)) >= 0) {
+			dst.flip();
+			byte[] b = new byte[n];
+			dst.get(b);
+			out.write(b);
+			dst.clear();
+		}
+		rc.close();
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(10, 5);
+		encoder.setSyncMarkers(true);
+		HeatShrinkWritableChannel wc = new HeatShrinkWritableChannel(Channels.newChannel(packed), encoder);
+		HeatShrinkDecoder decoder = new HeatShrinkDecoder(10, 5, 32);
+		decoder.setSyncMarkers(true);
+		ByteArrayOutputStream received = new ByteArrayOutputStream();
+		String sent = "";
+		for (int i = 0; i < 20; i++) {
+			String msg = "message " + i + ";";
+			sent += msg;
+			wc.write(ByteBuffer.wrap(msg.getBytes()));
+			wc.flush();
+			received.write(HeatShrinkEncoderTest.decodeAll(decoder, packed.toByteArray()));
+			packed.reset();
+			assertEquals(sent, received.toString());
+		}
+		wc.close();
+	}
+
+	@Test
+	public void testReadableEncoderToWritableDecoder() throws Exception {
+		byte[] data = data(50000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HeatShrinkReadableChannel rc = new HeatShrinkReadableChannel(
+				Channels.newChannel(new ByteArrayInputStream(data)), new HeatShrinkEncoder(11, 4));
+		try (HeatShrinkWritableChannel wc = new HeatShrinkWritableChannel(Channels.newChannel(out), new HeatShrinkDecoder(11, 4, 100))) {
+			rc.transferTo(wc);
+		}
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+}
@@ -1,5 +1,10 @@
 package com.rinke.solutions.io;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -56,9 +61,199 @@ public class HeatShrinkDecoderTest {
 		assertEquals(EMPTY, result.code);
 	}
 	
+	/* decode with output buffers of random small sizes */
+	static byte[] decodeChunked(HeatShrinkDecoder decoder, byte[] encoded, Random rand) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		int offset = 0;
+		while (true) {
+			if (offset < encoded.length) {
+				offset += decoder.sink(encoded, offset, encoded.length - offset).count;
+			}
+			Result res;
+			do {
+				byte[] buf = new byte[1 + rand.nextInt(40)];
+				res = decoder.poll(buf);
+				os.write(buf, 0, res.count);
+			} while (res.code == MORE);
+			if (offset == encoded.length) {
+				return os.toByteArray();
+			}
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Random rand = new Random(5);
+		byte[] data = new byte[30000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (rand.nextInt(6) + (i / 1000));
+		}
+		byte[] encoded = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(10, 5), data);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		HeatShrinkDecoder decoder = uut;
+		int offset = 0;
+		int moves = 0;
+		while (true) {
+			if (offset < encoded.length) {
+				offset += decoder.sink(encoded, offset, Math.min(1 + rand.nextInt(30), encoded.length - offset)).count;
+			}
+			Result res;
+			do {
+				byte[] buf = new byte[1 + rand.nextInt(40)];
+				res = decoder.poll(buf);
+				os.write(buf, 0, res.count);
+				if (rand.nextInt(10) == 0) {
+					// continue somewhere else, also in the middle of a token or backref
+					HeatShrinkDecoder next = new HeatShrinkDecoder(10, 5, 1 + rand.nextInt(64));
+					next.restore(decoder.snapshot());
+					decoder = next;
+					moves++;
+				}
+			} while (res.code == MORE);
+			if (offset == encoded.length) {
+				break;
+			}
+		}
+		assertTrue(moves > 50);
+		assertArrayEquals(data, os.toByteArray());
+		assertEquals(DONE, decoder.finish().code);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRestoreEncoderSnapshot() throws Exception {
+		uut.restore(new HeatShrinkEncoder(10, 5).snapshot());
+	}
+
+	/* snapshot of a fresh decoder with state, outputCount and outputIndex replaced */
+	private byte[] forgedSnapshot(HeatShrinkDecoder.State state, int outputCount, int outputIndex) {
+		ByteBuffer b = ByteBuffer.wrap(new HeatShrinkDecoder(10, 5, 32).snapshot());
+		b.putInt(6, state.ordinal());
+		b.putInt(27, outputCount);
+		b.putInt(31, outputIndex);
+		return b.array();
+	}
+
+	@Test
+	public void testRestoreCorruptSnapshot() throws Exception {
+		// restores fine if valid
+		uut.restore(forgedSnapshot(HSDS_YIELD_BACKREF, 5, 1));
+		byte[][] corrupt = { forgedSnapshot(HSDS_YIELD_BACKREF, 5, 0), forgedSnapshot(HSDS_YIELD_BACKREF, 33, 1),
+				forgedSnapshot(HSDS_BACKREF_COUNT_LSB, 0, 1 << 10 + 1) };
+		for (byte[] snapshot : corrupt) {
+			try {
+				uut.restore(snapshot);
+				fail("corrupt snapshot restored");
+			} catch (IllegalArgumentException e) {
+				// rejected instead of looping in poll
+			}
+		}
+		byte[] bits = new HeatShrinkDecoder(10, 5, 32).snapshot();
+		ByteBuffer.wrap(bits).putInt(15, 0x30);
+		try {
+			uut.restore(bits);
+			fail("bit index restored");
+		} catch (IllegalArgumentException e) {
+			// not a single bit
+		}
+		assertEquals(EMPTY, uut.poll(new byte[10]).code);
+	}
+
+	@Test
+	public void testBackrefs() throws Exception {
+		Random rand = new Random(42);
+		byte[] data = new byte[20000];
+		int i = 0;
+		while (i < data.length) {
+			int kind = rand.nextInt(4);
+			int len = Math.min(data.length - i, 1 + rand.nextInt(300));
+			for (int k = 0; k < len; k++, i++) {
+				switch (kind) {
+				case 0: data[i] = 7; break;                                 // run
+				case 1: data[i] = (byte) (k % 3); break;                    // short period
+				case 2: data[i] = (byte) rand.nextInt(256); break;          // literals
+				default: data[i] = i > 600 ? data[i - 600] : (byte) k; break; // far repeat
+				}
+			}
+		}
+		byte[] encoded = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(8, 4), data);
+		assertArrayEquals(data, decodeChunked(new HeatShrinkDecoder(8, 4, 64), encoded, rand));
+		encoded = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(11, 6), data);
+		assertArrayEquals(data, decodeChunked(new HeatShrinkDecoder(11, 6, 1024), encoded, rand));
+	}
+
+	@Test
+	public void testBulkDecode() throws Exception {
+		Random rand = new Random(7);
+		byte[] data = new byte[50000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 2000 < 1000 ? rand.nextInt(3) : rand.nextInt(256));
+		}
+		int[][] params = { { 4, 3 }, { 8, 4 }, { 10, 9 }, { 13, 12 } };
+		for (int[] p : params) {
+			byte[] encoded = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(p[0], p[1]), data);
+			for (int inputBufferSize : new int[] { 1, 2, 3, 5, 4096 }) {
+				HeatShrinkDecoder decoder = new HeatShrinkDecoder(p[0], p[1], inputBufferSize);
+				assertArrayEquals(data, HeatShrinkEncoderTest.decodeAll(decoder, encoded));
+			}
+		}
+	}
+
+	@Test
+	public void testRunAcrossWindowEnd() throws Exception {
+		byte[] data = new byte[5000];
+		Arrays.fill(data, 0, 250, (byte) 1);
+		Arrays.fill(data, 250, data.length, (byte) 2);
+		byte[] encoded = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(8, 7), data);
+		assertArrayEquals(data, decodeChunked(new HeatShrinkDecoder(8, 7, 16), encoded, new Random(1)));
+	}
+
+	@Test
+	public void testSinkDirect() throws Exception {
+		Random rand = new Random(11);
+		byte[] data = new byte[30000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 1000 < 600 ? rand.nextInt(4) : rand.nextInt(256));
+		}
+		byte[] encoded = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(10, 5), data);
+		// input slices of random size, output straight into one array at its offset
+		byte[] out = new byte[data.length + 20];
+		int in = 0;
+		int off = 10;
+		while (in < encoded.length) {
+			int n = Math.min(encoded.length - in, 1 + rand.nextInt(20));
+			assertEquals(n, uut.sinkDirect(encoded, in, n).count);
+			in += n;
+			Result res;
+			do {
+				res = uut.poll(out, off, Math.min(out.length - off, 1 + rand.nextInt(10)));
+				off += res.count;
+			} while (res.code == MORE);
+		}
+		assertEquals(DONE, uut.finish().code);
+		assertEquals(10 + data.length, off);
+		assertArrayEquals(data, Arrays.copyOfRange(out, 10, off));
+	}
+
+	@Test
+	public void testSinkDirectPending() throws Exception {
+		assertEquals(compressed.length, uut.sinkDirect(compressed, 0, compressed.length).count);
+		assertEquals(FULL, uut.sink(compressed, 0, 1).code);
+		assertEquals(FULL, uut.sinkDirect(compressed, 0, 1).code);
+		assertEquals(MORE, uut.finish().code);
+		byte[] buf = new byte[600];
+		assertEquals(512, uut.poll(buf, 50, 550).count);
+		assertEquals(DONE, uut.finish().code);
+		assertEquals(1, uut.sink(compressed, 0, 1).count);
+	}
+
+	@Test(expected=IndexOutOfBoundsException.class)
+	public void testPollOutOfRange() throws Exception {
+		uut.poll(new byte[10], 5, 6);
+	}
+
 	@Test(expected=IllegalArgumentException.class)
 	public void testPollNull() throws Exception {
-		uut.poll(null);
+		uut.poll((byte[]) null);
 	}
 
 	@Test(expected=IllegalArgumentException.class)
@@ -66,5 +261,30 @@ public class HeatShrinkDecoderTest {
 		uut.sink(null,0,0);
 	}
 
+	/* a, (1,1), b, (1,3) packed by the token writer */
+	private static byte[] shortBackrefs() throws Exception {
+		HeatShrinkTokens tokens = new HeatShrinkTokens(4);
+		tokens.addLiteral('a');
+		tokens.addBackref(1, 1);
+		tokens.addLiteral('b');
+		tokens.addBackref(1, 3);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		HeatShrinkTokenWriter writer = new HeatShrinkTokenWriter(8, 4, bos);
+		writer.write(tokens);
+		writer.finish();
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testBackrefOfOneByte() throws Exception {
+		// a standard backref unless sync markers are enabled
+		byte[] packed = shortBackrefs();
+		assertEquals("aabbbb", new String(HeatShrinkEncoderTest.decodeAll(new HeatShrinkDecoder(8, 4, 32), packed)));
+		assertEquals("aabbbb", new String(HeatShrinkEncoderTest.decodeAll(new HeatShrinkDecoder(8, 4, 1), packed)));
+		HeatShrinkDecoder sync = new HeatShrinkDecoder(8, 4, 32);
+		sync.setSyncMarkers(true);
+		String skipped = new String(HeatShrinkEncoderTest.decodeAll(sync, packed));
+		assertTrue(skipped, skipped.startsWith("a") && !skipped.startsWith("aa"));
+	}
 
 }
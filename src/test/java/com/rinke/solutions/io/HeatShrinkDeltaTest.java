@@ -0,0 +1,116 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HeatShrinkDeltaTest {
+
+	private final Random rand = new Random(5);
+
+	private byte[] image(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (rand.nextInt(4) == 0 ? 0 : rand.nextInt(256));
+		}
+		return data;
+	}
+
+	/* copy of reference with changed bytes and an insertion in the middle */
+	private byte[] modify(byte[] reference) {
+		int mid = reference.length / 2;
+		byte[] target = new byte[reference.length + 64];
+		System.arraycopy(reference, 0, target, 0, mid);
+		for (int i = mid; i < mid + 64; i++) {
+			target[i] = (byte) rand.nextInt(256);
+		}
+		System.arraycopy(reference, mid, target, mid + 64, reference.length - mid);
+		for (int i = 0; i < 20; i++) {
+			target[rand.nextInt(target.length)] = (byte) rand.nextInt(256);
+		}
+		return target;
+	}
+
+	@Test
+	public void testDiffPatch() throws Exception {
+		byte[] reference = image(200000);
+		byte[] target = modify(reference);
+		byte[] patch = HeatShrinkDelta.diff(reference, target, HeatShrinkDelta.windowBits(reference.length));
+		assertTrue("patch size " + patch.length, patch.length < target.length / 20);
+		assertArrayEquals(target, HeatShrinkDelta.patch(reference, patch));
+	}
+
+	@Test
+	public void testDefaultWindow() throws Exception {
+		byte[] reference = image(30000);
+		byte[] target = modify(reference);
+		byte[] patch = HeatShrinkDelta.diff(reference, target);
+		HeatShrinkHeader header = HeatShrinkHeader.read(new ByteArrayInputStream(patch));
+		assertEquals(HeatShrinkDelta.DEFAULT_WINDOW_BITS, header.getWindowSize());
+		assertFalse(header.isExtended());
+		assertTrue("patch size " + patch.length, patch.length < target.length / 20);
+		assertArrayEquals(target, HeatShrinkDelta.patch(reference, patch));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReferenceExceedsWindow() throws Exception {
+		byte[] reference = image(40000);
+		HeatShrinkDelta.diff(reference, modify(reference));
+	}
+
+	@Test
+	public void testWindowBits() {
+		assertEquals(9, HeatShrinkDelta.windowBits(0));
+		assertEquals(18, HeatShrinkDelta.windowBits(200000));
+		assertEquals(HeatShrinkEncoder.MAX_EXTENDED_WINDOW_BITS, HeatShrinkDelta.windowBits(1L << 30));
+	}
+
+	@Test
+	public void testPrimeStandardFormat() throws Exception {
+		byte[] reference = image(3000);
+		byte[] target = modify(reference);
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(13, 6);
+		encoder.prime(reference, 0, reference.length);
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		encoder.encode(new ByteArrayInputStream(target), packed);
+		assertTrue(packed.size() < target.length / 5);
+		HeatShrinkDecoder decoder = new HeatShrinkDecoder(13, 6, 100);
+		decoder.prime(reference, 0, reference.length);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		decoder.decode(new ByteArrayInputStream(packed.toByteArray()), out);
+		assertArrayEquals(target, out.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void testNeedsReference() throws Exception {
+		byte[] reference = image(1000);
+		HeatShrinkHeader.decompress(HeatShrinkDelta.diff(reference, modify(reference)));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPrimeAfterInput() throws Exception {
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(8, 4);
+		encoder.sink(new byte[10], 0, 10);
+		encoder.prime(new byte[10], 0, 10);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testDecoderPrimeAfterInput() throws Exception {
+		HeatShrinkDecoder decoder = new HeatShrinkDecoder(8, 4, 32);
+		decoder.sink(new byte[10], 0, 10);
+		decoder.prime(new byte[10], 0, 10);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPrimedNoDirectInput() throws Exception {
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(8, 4);
+		encoder.prime(new byte[10], 0, 10);
+		encoder.sinkDirect(new byte[10], 0, 10);
+	}
+
+}
@@ -2,6 +2,9 @@ package com.rinke.solutions.io;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Before;
@@ -97,6 +100,406 @@ public class HeatShrinkEncoderTest {
 	}
 
 
+	static byte[] encodeAll(HeatShrinkEncoder encoder, byte[] data) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		encoder.encode(new ByteArrayInputStream(data), os);
+		return os.toByteArray();
+	}
+
+	static byte[] decodeAll(HeatShrinkDecoder decoder, byte[] encoded) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		decoder.decode(new ByteArrayInputStream(encoded), os);
+		return os.toByteArray();
+	}
+
+	@Test
+	public void testCompactIndex() throws Exception {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (rand.nextInt(16) + (i / 1000));
+		}
+		HeatShrinkEncoder compact = new HeatShrinkEncoder(15, 8, true);
+		HeatShrinkEncoder full = new HeatShrinkEncoder(15, 8, false);
+		assertTrue(compact.isCompactIndex());
+		assertFalse(full.isCompactIndex());
+		assertArrayEquals(encodeAll(full, data), encodeAll(compact, data));
+		assertTrue(uut.isCompactIndex());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testCompactIndexTooLarge() throws Exception {
+		new HeatShrinkEncoder(16, 8, true);
+	}
+
+	@Test
+	public void testHeapFootprint() throws Exception {
+		HeatShrinkEncoder compact = new HeatShrinkEncoder(15, 8, true);
+		HeatShrinkEncoder full = new HeatShrinkEncoder(15, 8, false);
+		assertEquals(2 * (2 << 15), full.getHeapFootprint() - compact.getHeapFootprint());
+		assertTrue(compact.getHeapFootprint() > 3 * (2 << 15));
+		assertEquals(compact.getHeapFootprint(), HeatShrinkEncoder.heapFootprint(15, true));
+		assertEquals(full.getHeapFootprint(), HeatShrinkEncoder.heapFootprint(15, false));
+		assertEquals(new HeatShrinkEncoder(18, 8, false, true).getHeapFootprint(), HeatShrinkEncoder.heapFootprint(18, false));
+	}
+
+	/* encode polling into buffers of the given size */
+	static byte[] encodePolling(HeatShrinkEncoder encoder, byte[] data, int pollSize) {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		byte[] buf = new byte[pollSize];
+		int offset = 0;
+		while (true) {
+			if (offset < data.length) {
+				offset += encoder.sink(data, offset, data.length - offset).count;
+			}
+			if (offset == data.length) {
+				encoder.finish();
+			}
+			Result res;
+			do {
+				res = encoder.poll(buf);
+				os.write(buf, 0, res.count);
+			} while (res.code == MORE);
+			if (offset == data.length) {
+				return os.toByteArray();
+			}
+		}
+	}
+
+	@Test
+	public void testBulkSameAsStateMachine() throws Exception {
+		byte[] data = new byte[30000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 1000 < 500 ? rand.nextInt(4) : rand.nextInt(256));
+		}
+		int[][] params = { { 8, 4 }, { 12, 9 }, { 14, 13 } };
+		for (int[] p : params) {
+			byte[] single = encodePolling(new HeatShrinkEncoder(p[0], p[1]), data, 1);
+			byte[] small = encodePolling(new HeatShrinkEncoder(p[0], p[1]), data, 5);
+			byte[] bulk = encodePolling(new HeatShrinkEncoder(p[0], p[1]), data, 1 << 16);
+			assertArrayEquals(single, bulk);
+			assertArrayEquals(single, small);
+		}
+	}
+
+	@Test
+	public void testSinkDirect() throws Exception {
+		// input in the middle of a larger array, the bytes around it must not be matched
+		Random rand = new Random(5);
+		byte[] source = new byte[40000];
+		rand.nextBytes(source);
+		int from = 3000;
+		int length = 30000;
+		for (int i = from; i < from + length; i++) {
+			source[i] = (byte) (i % 1000 < 500 ? rand.nextInt(4) : rand.nextInt(256));
+		}
+		byte[] data = Arrays.copyOfRange(source, from, from + length);
+		int[][] params = { { 8, 4 }, { 10, 5 }, { 15, 8 } };
+		for (int[] p : params) {
+			// where sinkDirect calls end must not change the output
+			byte[] whole = encodeDirect(new HeatShrinkEncoder(p[0], p[1]), source, from, length, 0, rand);
+			byte[] chunked = encodeDirect(new HeatShrinkEncoder(p[0], p[1]), source, from, length, 3000, rand);
+			assertArrayEquals(whole, chunked);
+			assertArrayEquals(data, decodeAll(new HeatShrinkDecoder(p[0], p[1], 256), chunked));
+		}
+	}
+
+	/* sinkDirect in calls of up to maxChunk bytes, all at once for 0, polling into random slices */
+	static byte[] encodeDirect(HeatShrinkEncoder encoder, byte[] source, int from, int length, int maxChunk, Random rand) {
+		byte[] out = new byte[100 + length + length / 8 + 1];
+		int in = from;
+		int off = 100;
+		boolean finished = false;
+		while (!finished) {
+			if (in < from + length) {
+				in += encoder.sinkDirect(source, in, maxChunk == 0 ? from + length - in : Math.min(from + length - in, 1 + rand.nextInt(maxChunk))).count;
+			} else {
+				finished = encoder.finish().code == DONE;
+			}
+			Result res;
+			do {
+				res = encoder.poll(out, off, Math.min(out.length - off, 1 + rand.nextInt(64)));
+				off += res.count;
+			} while (res.code == MORE);
+		}
+		return Arrays.copyOfRange(out, 100, off);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSinkDirectNotContiguous() throws Exception {
+		byte[] data = new byte[100];
+		uut.sinkDirect(data, 0, 10);
+		uut.sinkDirect(data, 20, 10);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSinkAfterSinkDirect() throws Exception {
+		byte[] data = new byte[100];
+		uut.sinkDirect(data, 0, 10);
+		uut.sink(data, 10, 10);
+	}
+
+	@Test
+	public void testExtendedWindow() throws Exception {
+		// random blocks that repeat 100000 bytes later, out of reach of a standard window
+		byte[] data = new byte[300000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = i < 100000 ? (byte) rand.nextInt(256) : data[i - 100000];
+		}
+		byte[] standard = encodeAll(new HeatShrinkEncoder(15, 8), data);
+		byte[] extended = encodeAll(new HeatShrinkEncoder(17, 8, false, true), data);
+		assertTrue(extended.length < standard.length / 2);
+		assertArrayEquals(data, decodeAll(new HeatShrinkDecoder(17, 8, 4096, true), extended));
+		// index bits spread over several tiny input buffers
+		assertArrayEquals(data, HeatShrinkDecoderTest.decodeChunked(new HeatShrinkDecoder(17, 8, 1, true), extended, rand));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLargeWindowNeedsExtended() throws Exception {
+		new HeatShrinkEncoder(16, 8);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExtendedWindowTooLarge() throws Exception {
+		new HeatShrinkDecoder(25, 8, 1024, true);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLookaheadNotBelowWindow() throws Exception {
+		new HeatShrinkEncoder(8, 8);
+	}
+
+	@Test
+	public void testSearchPresets() throws Exception {
+		Random random = new Random(3);
+		byte[] data = new byte[60000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 5000 < 2000 ? 0 : random.nextInt(8));
+		}
+		byte[] unlimited = encodeAll(new HeatShrinkEncoder(12, 6), data);
+		int previous = Integer.MAX_VALUE;
+		for (HeatShrinkEncoder.SearchPreset preset : HeatShrinkEncoder.SearchPreset.values()) {
+			HeatShrinkEncoder encoder = new HeatShrinkEncoder(12, 6);
+			encoder.setSearchPreset(preset);
+			byte[] encoded = encodeAll(encoder, data);
+			assertArrayEquals(data, decodeAll(new HeatShrinkDecoder(12, 6, 256), encoded));
+			assertTrue(encoded.length <= previous);
+			previous = encoded.length;
+		}
+		assertEquals(unlimited.length, previous);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSearchLimitsPositive() throws Exception {
+		uut.setSearchLimits(0, 8, 8);
+	}
+
+	@Test
+	public void testRuns() throws Exception {
+		Random random = new Random(9);
+		byte[] data = new byte[200000];
+		int i = 0;
+		while (i < data.length) {
+			int len = Math.min(data.length - i, random.nextInt(4) == 0 ? 1 + random.nextInt(20) : 100 + random.nextInt(3000));
+			byte c = (byte) random.nextInt(3);
+			for (int k = 0; k < len; k++) {
+				data[i++] = random.nextInt(100) == 0 ? (byte) random.nextInt(256) : c;
+			}
+		}
+		int[][] params = { { 8, 4 }, { 11, 6 }, { 13, 12 }, { 17, 8 } };
+		for (int[] p : params) {
+			byte[] exhaustive = encodeAll(new HeatShrinkEncoder(p[0], p[1], false, true), data);
+			assertArrayEquals(exhaustive, encodeAll(new HeatShrinkEncoder(p[0], p[1], p[0] <= 15, true), data));
+			assertArrayEquals(data, decodeAll(new HeatShrinkDecoder(p[0], p[1], 512, true), exhaustive));
+			HeatShrinkEncoder fast = new HeatShrinkEncoder(p[0], p[1], false, true);
+			fast.setSearchPreset(HeatShrinkEncoder.SearchPreset.FAST);
+			assertArrayEquals(data, decodeAll(new HeatShrinkDecoder(p[0], p[1], 512, true), encodeAll(fast, data)));
+		}
+		// a plain run is one maximal backref per lookahead size
+		byte[] zeros = new byte[1 << 16];
+		assertEquals(((1 << 16) / 16 * 13 + 7) / 8, encodeAll(new HeatShrinkEncoder(8, 4), zeros).length);
+	}
+
+	/* sink all of data, polling whenever the input buffer is full */
+	private static void sinkAll(HeatShrinkEncoder encoder, byte[] data, ByteArrayOutputStream os) {
+		byte[] buf = new byte[1 + data.length];
+		int offset = 0;
+		while (offset < data.length) {
+			offset += encoder.sink(data, offset, data.length - offset).count;
+			Result res;
+			do {
+				res = encoder.poll(buf);
+				os.write(buf, 0, res.count);
+			} while (res.code == MORE);
+		}
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		int[][] params = { { 8, 4 }, { 11, 9 }, { 13, 6 }, { 20, 6 } };
+		Random rand = new Random(7);
+		for (int[] p : params) {
+			HeatShrinkEncoder encoder = new HeatShrinkEncoder(p[0], p[1], false, true);
+			encoder.setSyncMarkers(true);
+			HeatShrinkDecoder decoder = new HeatShrinkDecoder(p[0], p[1], 1 + rand.nextInt(64), true);
+			decoder.setSyncMarkers(true);
+			ByteArrayOutputStream sent = new ByteArrayOutputStream();
+			ByteArrayOutputStream received = new ByteArrayOutputStream();
+			long flushed = 0;
+			long separate = 0;
+			for (int m = 0; m < 60; m++) {
+				byte[] msg = ("{\"sensor\":" + rand.nextInt(8) + ",\"value\":" + rand.nextInt(1000) + "}").getBytes();
+				if (m % 10 == 0) {
+					msg = Arrays.copyOf(msg, msg.length + rand.nextInt(3000));
+				}
+				sent.write(msg);
+				ByteArrayOutputStream packet = new ByteArrayOutputStream();
+				sinkAll(encoder, msg, packet);
+				assertEquals(MORE, encoder.flush().code);
+				byte[] buf = new byte[1 + rand.nextInt(50)];
+				Result res;
+				do {
+					res = encoder.poll(buf);
+					packet.write(buf, 0, res.count);
+				} while (res.code == MORE);
+				assertEquals(EMPTY, res.code);
+				// everything sent so far decodes from the packets received so far
+				flushed += packet.size();
+				received.write(HeatShrinkDecoderTest.decodeChunked(decoder, packet.toByteArray(), rand));
+				assertArrayEquals(sent.toByteArray(), received.toByteArray());
+				separate += encodeAll(new HeatShrinkEncoder(p[0], p[1], false, true), msg).length;
+			}
+			ByteArrayOutputStream tail = new ByteArrayOutputStream();
+			while (encoder.finish().code == MORE) {
+				byte[] buf = new byte[64];
+				Result res = encoder.poll(buf);
+				tail.write(buf, 0, res.count);
+			}
+			assertEquals(0, tail.size());
+			assertEquals(DONE, decoder.finish().code);
+			// messages refer to earlier ones
+			assertTrue(flushed < separate);
+		}
+	}
+
+	@Test
+	public void testFlushAligned() throws Exception {
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(8, 4);
+		encoder.setSyncMarkers(true);
+		assertEquals(MORE, encoder.flush().code);
+		assertEquals(0, encoder.poll(new byte[16]).count);
+		// 8 literals are 9 bytes, byte aligned: no sync marker
+		encoder.sink("abcdefgh".getBytes(), 0, 8);
+		encoder.flush();
+		assertEquals(9, encoder.poll(new byte[16]).count);
+		// 1 literal needs a 13 bit marker and 2 bits padding
+		encoder.sink("i".getBytes(), 0, 1);
+		encoder.flush();
+		assertEquals(3, encoder.poll(new byte[16]).count);
+	}
+
+	@Test
+	public void testFlushStandard() throws Exception {
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(8, 4);
+		ByteArrayOutputStream packed = new ByteArrayOutputStream();
+		byte[] buf = new byte[16];
+		// 1 literal is 9 bits, without sync markers the last bit waits for more output
+		encoder.sink("a".getBytes(), 0, 1);
+		encoder.flush();
+		Result res = encoder.poll(buf);
+		assertEquals(1, res.count);
+		assertEquals(EMPTY, res.code);
+		packed.write(buf, 0, res.count);
+		sinkAll(encoder, "ab".getBytes(), packed);
+		while (encoder.finish().code == MORE) {
+			res = encoder.poll(buf);
+			packed.write(buf, 0, res.count);
+		}
+		// a standard stream, any decoder reads it
+		assertEquals("aab", new String(decodeAll(new HeatShrinkDecoder(8, 4, 32), packed.toByteArray())));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFlushAfterFinish() throws Exception {
+		uut.finish();
+		uut.flush();
+	}
+
+	/* direct counterpart of sinkAll */
+	private static void sinkAllDirect(HeatShrinkEncoder encoder, byte[] data, int offset, int end, ByteArrayOutputStream os) {
+		byte[] buf = new byte[64];
+		while (offset < end) {
+			offset += encoder.sinkDirect(data, offset, end - offset).count;
+			Result res;
+			do {
+				res = encoder.poll(buf);
+				os.write(buf, 0, res.count);
+			} while (res.code == MORE);
+		}
+	}
+
+	private static void finishAll(HeatShrinkEncoder encoder, ByteArrayOutputStream os) {
+		byte[] buf = new byte[64];
+		while (encoder.finish().code == MORE) {
+			Result res = encoder.poll(buf);
+			os.write(buf, 0, res.count);
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws Exception {
+		Random random = new Random(11);
+		byte[] data = new byte[20000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (random.nextInt(8) + (i / 900));
+		}
+		int[][] params = { { 8, 4 }, { 10, 5 }, { 17, 8 } };
+		for (int[] p : params) {
+			byte[] expected = encodeAll(new HeatShrinkEncoder(p[0], p[1], false, true), data);
+			for (int split : new int[] { 0, 1, 700, 5000, 19999 }) {
+				HeatShrinkEncoder first = new HeatShrinkEncoder(p[0], p[1], false, true);
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				sinkAll(first, Arrays.copyOf(data, split), os);
+				byte[] snapshot = first.snapshot();
+				assertTrue(snapshot.length < (2 << p[0]) + 64);
+				HeatShrinkEncoder second = new HeatShrinkEncoder(p[0], p[1], false, true);
+				second.restore(snapshot);
+				sinkAll(second, Arrays.copyOfRange(data, split, data.length), os);
+				finishAll(second, os);
+				assertArrayEquals(expected, os.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void testSnapshotDirect() throws Exception {
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (rand.nextInt(4) + (i / 700));
+		}
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		sinkAllDirect(uut, data, 0, data.length, expected);
+		finishAll(uut, expected);
+		HeatShrinkEncoder first = new HeatShrinkEncoder(10, 5);
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		sinkAllDirect(first, data, 0, 3333, os);
+		HeatShrinkEncoder second = new HeatShrinkEncoder(10, 5);
+		second.restore(first.snapshot());
+		sinkAll(second, Arrays.copyOfRange(data, 3333, data.length), os);
+		finishAll(second, os);
+		assertArrayEquals(expected.toByteArray(), os.toByteArray());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testSnapshotBusy() throws Exception {
+		uut.sink(new byte[2048], 0, 2048);
+		uut.snapshot();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRestoreOtherParams() throws Exception {
+		new HeatShrinkEncoder(11, 5).restore(uut.snapshot());
+	}
+
 	@Test
 	public void testFinish() throws Exception {
 		uut.finish();
@@ -0,0 +1,66 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeatShrinkEventsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static RecordedEvent find(List<RecordedEvent> events, String name) {
+		for (RecordedEvent e : events) {
+			if (e.getEventType().getName().equals(name)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	@Test
+	public void testEvents() throws Exception {
+		byte[] data = new byte[10000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 50);
+		}
+		File file = folder.newFile("events.jfr");
+		Recording recording = new Recording();
+		recording.enable("com.rinke.solutions.io.Encode");
+		recording.enable("com.rinke.solutions.io.Decode");
+		recording.enable("com.rinke.solutions.io.Search");
+		recording.start();
+		byte[] encoded = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(8, 4), data);
+		HeatShrinkEncoderTest.decodeAll(new HeatShrinkDecoder(8, 4, 64), encoded);
+		recording.stop();
+		recording.dump(file.toPath());
+		recording.close();
+
+		List<RecordedEvent> events = RecordingFile.readAllEvents(file.toPath());
+		RecordedEvent encode = find(events, "com.rinke.solutions.io.Encode");
+		assertNotNull(encode);
+		assertEquals(data.length, encode.getLong("bytesIn"));
+		assertEquals(encoded.length, encode.getLong("bytesOut"));
+		assertEquals(8, encode.getInt("windowSize"));
+		assertTrue(encode.getInt("fills") >= data.length / 256);
+		RecordedEvent decode = find(events, "com.rinke.solutions.io.Decode");
+		assertNotNull(decode);
+		assertEquals(data.length, decode.getLong("bytesOut"));
+		assertNotNull(find(events, "com.rinke.solutions.io.Search"));
+	}
+
+	@Test
+	public void testDisabledByDefault() throws Exception {
+		assertNull(HeatShrinkEvents.beginEncode());
+		assertNull(HeatShrinkEvents.beginSearch());
+	}
+}
@@ -0,0 +1,189 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeatShrinkFramedTest {
+
+	HeatShrinkFramed uut;
+	Random rand = new Random(4711);
+
+	@Before
+	public void setUp() throws Exception {
+		uut = new HeatShrinkFramed(10, 5);
+		uut.setBlockSize(8192);
+	}
+
+	private byte[] roundTrip(byte[] data, ByteArrayOutputStream encoded) throws Exception {
+		uut.encode(new ByteArrayInputStream(data), encoded);
+		ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		uut.decode(new ByteArrayInputStream(encoded.toByteArray()), decoded);
+		return decoded.toByteArray();
+	}
+
+	@Test
+	public void testCompressible() throws Exception {
+		byte[] data = new byte[50000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ((i / 20) % 7);
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		assertArrayEquals(data, roundTrip(data, encoded));
+		assertTrue(encoded.size() < data.length / 4);
+		assertEquals(HeatShrinkFramed.FRAME_COMPRESSED, encoded.toByteArray()[0]);
+	}
+
+	@Test
+	public void testIncompressibleIsStored() throws Exception {
+		byte[] data = new byte[50000];
+		rand.nextBytes(data);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		assertArrayEquals(data, roundTrip(data, encoded));
+		// 7 frames, 3 bytes header each
+		assertTrue(encoded.size() <= data.length + 7 * 3);
+		assertEquals(HeatShrinkFramed.FRAME_STORED, encoded.toByteArray()[0]);
+	}
+
+	@Test
+	public void testMixed() throws Exception {
+		byte[] data = new byte[100000];
+		rand.nextBytes(data);
+		for (int i = 40000; i < data.length; i++) {
+			data[i] = (byte) (i % 13);
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		assertArrayEquals(data, roundTrip(data, encoded));
+		// some compressible blocks may get stored while backing off
+		assertTrue(encoded.size() < 70000);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		assertEquals(0, roundTrip(new byte[0], encoded).length);
+		assertEquals(0, encoded.size());
+	}
+
+	@Test
+	public void testEncoderAborts() throws Exception {
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(10, 5);
+		encoder.setIncompressibleProbe(512);
+		encoder.reset();
+		byte[] data = new byte[2048];
+		rand.nextBytes(data);
+		encoder.sink(data, 0, data.length);
+		Result res = encoder.poll(new byte[4096]);
+		assertEquals(ABORTED, res.code);
+		assertTrue(encoder.isAborted());
+		assertEquals(ABORTED, encoder.finish().code);
+	}
+
+	/* skewed letters with few repeats, mostly literals */
+	private byte[] text(int len) {
+		String letters = "eeeeeeettttaaaooiinnsshhrrdlcumwfgypbvk  ";
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++) {
+			data[i] = (byte) letters.charAt(rand.nextInt(letters.length()));
+		}
+		return data;
+	}
+
+	@Test
+	public void testHuffmanLiterals() throws Exception {
+		byte[] data = text(50000);
+		ByteArrayOutputStream plain = new ByteArrayOutputStream();
+		assertArrayEquals(data, roundTrip(data, plain));
+		uut.setHuffmanLiterals(true);
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		assertArrayEquals(data, roundTrip(data, encoded));
+		assertEquals(HeatShrinkFramed.FRAME_HUFFMAN, encoded.toByteArray()[0]);
+		assertTrue(encoded.size() < plain.size());
+	}
+
+	@Test
+	public void testHuffmanFallsBack() throws Exception {
+		uut.setHuffmanLiterals(true);
+		byte[] data = new byte[50000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ((i / 20) % 7);
+		}
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		assertArrayEquals(data, roundTrip(data, encoded));
+		// few literals do not pay for the code table
+		assertEquals(HeatShrinkFramed.FRAME_COMPRESSED, encoded.toByteArray()[0]);
+	}
+
+	@Test
+	public void testHuffmanCodeLengths() throws Exception {
+		int[] freq = new int[256];
+		for (int i = 0; i < freq.length; i++) {
+			freq[i] = 1 << (i % 24);
+		}
+		int[] lengths = HeatShrinkHuffman.codeLengths(freq, HeatShrinkHuffman.MAX_CODE_LENGTH);
+		double kraft = 0;
+		for (int l : lengths) {
+			assertTrue(l > 0 && l <= HeatShrinkHuffman.MAX_CODE_LENGTH);
+			kraft += Math.pow(2, -l);
+		}
+		assertTrue(kraft <= 1.0);
+	}
+
+	@Test
+	public void testVarint() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		long[] values = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE };
+		for (long v : values) {
+			HeatShrinkFramed.writeVarint(os, v);
+		}
+		ByteArrayInputStream is = new ByteArrayInputStream(os.toByteArray());
+		for (long v : values) {
+			assertEquals(v, HeatShrinkFramed.readVarint(is));
+		}
+	}
+
+	/* a frame header declaring rawLength and, unless stored, payloadLength, followed by a few bytes */
+	private void decodeForged(int type, long rawLength, long payloadLength) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		os.write(type);
+		HeatShrinkFramed.writeVarint(os, rawLength);
+		if (type != HeatShrinkFramed.FRAME_STORED) {
+			HeatShrinkFramed.writeVarint(os, payloadLength);
+		}
+		os.write(new byte[] { 0x12, 0x34, 0x56 });
+		uut.decode(new ByteArrayInputStream(os.toByteArray()), new ByteArrayOutputStream());
+	}
+
+	@Test
+	public void testForgedLengths() throws Exception {
+		long[][] frames = {
+				{ HeatShrinkFramed.FRAME_STORED, Integer.MAX_VALUE, 0 },
+				{ HeatShrinkFramed.FRAME_STORED, HeatShrinkFramed.MAX_BLOCK_SIZE, 0 },
+				{ HeatShrinkFramed.FRAME_COMPRESSED, HeatShrinkFramed.MAX_BLOCK_SIZE, 3 },
+				{ HeatShrinkFramed.FRAME_COMPRESSED, 1000, Integer.MAX_VALUE },
+				{ HeatShrinkFramed.FRAME_COMPRESSED, 1000, 999 },
+				{ HeatShrinkFramed.FRAME_HUFFMAN, 1000, 1000 },
+				{ HeatShrinkFramed.FRAME_COMPRESSED, -1, 3 } };
+		for (long[] f : frames) {
+			try {
+				decodeForged((int) f[0], f[1], f[2]);
+				fail("frame " + Arrays.toString(f) + " accepted");
+			} catch (IOException e) {
+				// rejected or truncated, without allocating the declared lengths
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBlockSizeLimit() throws Exception {
+		uut.setBlockSize(HeatShrinkFramed.MAX_BLOCK_SIZE + 1);
+	}
+}
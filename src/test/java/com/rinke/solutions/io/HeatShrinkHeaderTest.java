@@ -0,0 +1,112 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HeatShrinkHeaderTest {
+
+	private static byte[] data(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ((i / 3) % 19);
+		}
+		return data;
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		HeatShrinkHeader h = new HeatShrinkHeader(20, 6, true, true, 1234567);
+		byte[] bytes = h.toByteArray();
+		assertEquals('H', bytes[0]);
+		assertEquals('S', bytes[1]);
+		HeatShrinkHeader r = HeatShrinkHeader.read(new ByteArrayInputStream(bytes));
+		assertEquals(20, r.getWindowSize());
+		assertEquals(6, r.getLookAhead());
+		assertTrue(r.isExtended());
+		assertTrue(r.isFramed());
+		assertEquals(1234567, r.getLength());
+	}
+
+	@Test
+	public void testNoLength() throws Exception {
+		byte[] bytes = new HeatShrinkHeader(8, 4, false, false, -1).toByteArray();
+		assertEquals(5, bytes.length);
+		assertEquals(-1, HeatShrinkHeader.read(new ByteArrayInputStream(bytes)).getLength());
+	}
+
+	@Test(expected = IOException.class)
+	public void testBadMagic() throws Exception {
+		HeatShrinkHeader.read(new ByteArrayInputStream(new byte[] { 'H', 'X', 0x10, 8, 4 }));
+	}
+
+	@Test(expected = IOException.class)
+	public void testBadVersion() throws Exception {
+		HeatShrinkHeader.read(new ByteArrayInputStream(new byte[] { 'H', 'S', 0x20, 8, 4 }));
+	}
+
+	@Test(expected = IOException.class)
+	public void testInvalidParams() throws Exception {
+		HeatShrinkHeader.read(new ByteArrayInputStream(new byte[] { 'H', 'S', 0x10, 20, 4 }));
+	}
+
+	@Test
+	public void testOneShot() throws Exception {
+		byte[] data = data(100000);
+		byte[] packed = HeatShrinkHeader.compress(data, 11, 4);
+		assertTrue(packed.length < data.length / 2);
+		assertArrayEquals(data, HeatShrinkHeader.decompress(packed));
+		assertArrayEquals(new byte[0], HeatShrinkHeader.decompress(HeatShrinkHeader.compress(new byte[0], 8, 4)));
+	}
+
+	@Test
+	public void testUnknownLength() throws Exception {
+		byte[] data = data(5000);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new HeatShrinkHeader(9, 4, false, false, -1).write(bos);
+		bos.write(HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(9, 4), data));
+		assertArrayEquals(data, HeatShrinkHeader.decompress(bos.toByteArray()));
+	}
+
+	@Test
+	public void testFramed() throws Exception {
+		byte[] data = data(200000);
+		HeatShrinkHeader h = new HeatShrinkHeader(10, 5, false, true, data.length);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		h.write(bos);
+		h.newFramed().encode(new ByteArrayInputStream(data), bos);
+		assertArrayEquals(data, HeatShrinkHeader.decompress(bos.toByteArray()));
+	}
+
+	@Test(expected = IOException.class)
+	public void testLengthMismatch() throws Exception {
+		byte[] data = data(5000);
+		byte[] packed = HeatShrinkHeader.compress(data, 8, 4);
+		byte[] header = new HeatShrinkHeader(8, 4, false, false, 4000).toByteArray();
+		byte[] wrong = Arrays.copyOf(header, header.length + packed.length - 7);
+		/* the original header has a two byte length */
+		System.arraycopy(packed, 7, wrong, header.length, packed.length - 7);
+		HeatShrinkHeader.decompress(wrong);
+	}
+
+	@Test
+	public void testForgedLength() throws Exception {
+		for (boolean framed : new boolean[] { false, true }) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			new HeatShrinkHeader(8, 4, false, framed, Integer.MAX_VALUE - 8).write(bos);
+			bos.write(new byte[] { 0x12, 0x34, 0x56 });
+			try {
+				HeatShrinkHeader.decompress(bos.toByteArray());
+				fail("declared length accepted");
+			} catch (IOException e) {
+				// rejected without allocating the declared length
+			}
+		}
+	}
+
+}
@@ -0,0 +1,133 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeatShrinkIndexTest {
+
+	Random rand = new Random(4711);
+	byte[] data;
+	File file;
+
+	@Before
+	public void setup() throws Exception {
+		data = new byte[200000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + Math.min(25, (int) Math.abs(rand.nextGaussian() * 5)));
+		}
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new HeatShrinkEncoder(11, 4).encode(new ByteArrayInputStream(data), bos);
+		file = File.createTempFile("heatshrink", ".hs");
+		Files.write(file.toPath(), bos.toByteArray());
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private SeekableByteChannel open() throws IOException {
+		return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	private HeatShrinkIndex build(int spacing) throws IOException {
+		return HeatShrinkIndex.build(new ByteArrayInputStream(Files.readAllBytes(file.toPath())), 11, 4, false, spacing);
+	}
+
+	@Test
+	public void testRandomReads() throws Exception {
+		HeatShrinkIndex uut = build(10000);
+		assertEquals(data.length, uut.getLength());
+		assertTrue(uut.size() >= 15);
+		SeekableByteChannel ch = open();
+		try {
+			for (int i = 0; i < 50; i++) {
+				int offset = rand.nextInt(data.length);
+				int len = 1 + rand.nextInt(30000);
+				byte[] dst = new byte[len];
+				int n = uut.read(ch, offset, dst, 0, len);
+				assertEquals(Math.min(len, data.length - offset), n);
+				assertArrayEquals(Arrays.copyOfRange(data, offset, offset + n), Arrays.copyOf(dst, n));
+			}
+			assertEquals(-1, uut.read(ch, data.length, new byte[10], 0, 10));
+		} finally {
+			ch.close();
+		}
+	}
+
+	@Test
+	public void testWriteRead() throws Exception {
+		HeatShrinkIndex index = build(20000);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		index.write(bos);
+		HeatShrinkIndex uut = HeatShrinkIndex.read(new ByteArrayInputStream(bos.toByteArray()));
+		assertEquals(index.size(), uut.size());
+		assertEquals(index.getLength(), uut.getLength());
+		SeekableByteChannel ch = open();
+		try {
+			byte[] dst = new byte[1000];
+			assertEquals(1000, uut.read(ch, 123456, dst, 0, 1000));
+			assertArrayEquals(Arrays.copyOfRange(data, 123456, 124456), dst);
+		} finally {
+			ch.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testReadInvalid() throws Exception {
+		HeatShrinkIndex.read(new ByteArrayInputStream(new byte[] { 'H', 'S', 'X', 1 }));
+	}
+
+	@Test
+	public void testOpenStream() throws Exception {
+		HeatShrinkIndex uut = build(10000);
+		SeekableByteChannel ch = open();
+		try {
+			InputStream is = uut.openStream(ch, 54321);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] buf = new byte[777];
+			int n;
+			while ((n = is.read(buf)) >= 0) {
+				bos.write(buf, 0, n);
+			}
+			assertArrayEquals(Arrays.copyOfRange(data, 54321, data.length), bos.toByteArray());
+			assertEquals(-1, uut.openStream(ch, data.length).read());
+		} finally {
+			ch.close();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testCorruptSnapshot() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		build(1 << 20).write(bos);
+		byte[] index = bos.toByteArray();
+		// the only access point is at the start, its empty snapshot ends the index
+		int start = index.length - new HeatShrinkDecoder(11, 4, 32).snapshot().length;
+		ByteBuffer snapshot = ByteBuffer.wrap(index, start, index.length - start).slice();
+		snapshot.putInt(6, HeatShrinkDecoder.State.HSDS_YIELD_BACKREF.ordinal());
+		snapshot.putInt(27, 5); // outputCount, outputIndex stays 0
+		SeekableByteChannel ch = open();
+		try {
+			HeatShrinkIndex.read(new ByteArrayInputStream(index)).read(ch, 10, new byte[10], 0, 10);
+		} finally {
+			ch.close();
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HeatShrinkParallelEncoderTest {
+
+	private final Random rand = new Random(11);
+
+	private byte[] data(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (rand.nextInt(3) == 0 ? rand.nextInt(256) : 'a' + (i / 7) % 11);
+		}
+		return data;
+	}
+
+	private static byte[] decode(int windowSize, int lookAhead, byte[] packed) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new HeatShrinkDecoder(windowSize, lookAhead, 64).decode(new ByteArrayInputStream(packed), out);
+		return out.toByteArray();
+	}
+
+	@Test
+	public void testStandardDecoder() throws Exception {
+		int[][] params = { { 4, 3 }, { 8, 4 }, { 10, 5 }, { 11, 9 }, { 13, 6 } };
+		for (int[] p : params) {
+			byte[] data = data(70000 + rand.nextInt(1000));
+			HeatShrinkParallelEncoder encoder = new HeatShrinkParallelEncoder(p[0], p[1], 3);
+			encoder.setChunkSize(Math.max(1 << p[0], 4000 + rand.nextInt(100)));
+			byte[] packed = encoder.encode(data);
+			assertArrayEquals("params " + p[0] + "/" + p[1], data, decode(p[0], p[1], packed));
+		}
+	}
+
+	@Test
+	public void testCloseToSequential() throws Exception {
+		byte[] data = data(300000);
+		HeatShrinkParallelEncoder encoder = new HeatShrinkParallelEncoder(11, 4, 4);
+		encoder.setChunkSize(1 << 15);
+		byte[] parallel = encoder.encode(data);
+		byte[] sequential = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(11, 4), data);
+		assertArrayEquals(data, decode(11, 4, parallel));
+		assertTrue(parallel.length < sequential.length * 1.01);
+	}
+
+	@Test
+	public void testSingleChunkIsSequential() throws Exception {
+		byte[] data = data(20000);
+		byte[] parallel = new HeatShrinkParallelEncoder(10, 5, 2).encode(data);
+		assertArrayEquals(HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(10, 5), data), parallel);
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		assertEquals(0, new HeatShrinkParallelEncoder(8, 4, 2).encode(new byte[0]).length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testChunkSmallerThanWindow() {
+		new HeatShrinkParallelEncoder(12, 4, 2).setChunkSize(1000);
+	}
+
+}
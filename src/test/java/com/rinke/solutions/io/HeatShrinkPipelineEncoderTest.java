@@ -0,0 +1,121 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+import static com.rinke.solutions.io.Result.Code.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HeatShrinkPipelineEncoderTest {
+
+	Random rand = new Random(4711);
+
+	private byte[] data(int len) {
+		byte[] data = new byte[len];
+		for (int i = 0; i < len; i++) {
+			data[i] = (byte) (i % 251 < 100 ? rand.nextInt(4) : (i / 7) % 13);
+		}
+		return data;
+	}
+
+	private byte[] encode(byte[] data, int windowSize, int lookAhead) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		new HeatShrinkEncoder(windowSize, lookAhead).encode(new ByteArrayInputStream(data), bos);
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testSameAsEncoder() throws Exception {
+		byte[] data = data(100000);
+		int[][] params = { { 8, 4 }, { 10, 5 }, { 12, 6 } };
+		for (int[] p : params) {
+			HeatShrinkPipelineEncoder uut = new HeatShrinkPipelineEncoder(p[0], p[1]);
+			uut.setBatchSize(7);
+			assertArrayEquals(encode(data, p[0], p[1]), uut.encode(data));
+		}
+	}
+
+	@Test
+	public void testEmpty() throws Exception {
+		assertArrayEquals(encode(new byte[0], 10, 5), new HeatShrinkPipelineEncoder(10, 5).encode(new byte[0]));
+	}
+
+	@Test
+	public void testTokensRebuildInput() throws Exception {
+		byte[] data = data(20000);
+		HeatShrinkEncoder encoder = new HeatShrinkEncoder(10, 5);
+		HeatShrinkTokens tokens = new HeatShrinkTokens(100);
+		byte[] out = new byte[data.length];
+		int n = 0;
+		int offset = 0;
+		Result res;
+		do {
+			if (offset < data.length) {
+				offset += encoder.sink(data, offset, data.length - offset).count;
+			} else {
+				encoder.finish();
+			}
+			do {
+				res = encoder.pollTokens(tokens);
+				for (int i = 0; i < tokens.size(); i++) {
+					if (tokens.isLiteral(i)) {
+						out[n++] = (byte) tokens.getLiteral(i);
+					} else {
+						for (int j = 0; j < tokens.getLength(i); j++, n++) {
+							out[n] = n < tokens.getDistance(i) ? 0 : out[n - tokens.getDistance(i)];
+						}
+					}
+				}
+				tokens.clear();
+			} while (res.code == MORE);
+		} while (offset < data.length || encoder.finish().code != DONE);
+		assertEquals(data.length, n);
+		assertArrayEquals(data, out);
+	}
+
+	@Test
+	public void testWrittenTokensDecode() throws Exception {
+		// any tokens, also backrefs of one byte the match search never emits
+		Random rand = new Random(13);
+		int[][] params = { { 8, 4 }, { 11, 9 } };
+		for (int[] p : params) {
+			HeatShrinkTokens tokens = new HeatShrinkTokens(5000);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			byte[] window = new byte[1 << p[0]];
+			int head = 0;
+			while (!tokens.isFull()) {
+				if (rand.nextInt(3) == 0) {
+					int b = rand.nextInt(256);
+					tokens.addLiteral(b);
+					expected.write(b);
+					window[head++ & (window.length - 1)] = (byte) b;
+				} else {
+					int distance = rand.nextInt(4) == 0 ? 1 : 1 + rand.nextInt(window.length);
+					int length = rand.nextInt(4) == 0 ? 1 : 1 + rand.nextInt(1 << p[1]);
+					tokens.addBackref(distance, length);
+					for (int i = 0; i < length; i++) {
+						byte b = window[(head - distance) & (window.length - 1)];
+						expected.write(b);
+						window[head++ & (window.length - 1)] = b;
+					}
+				}
+			}
+			ByteArrayOutputStream packed = new ByteArrayOutputStream();
+			HeatShrinkTokenWriter writer = new HeatShrinkTokenWriter(p[0], p[1], packed);
+			writer.write(tokens);
+			writer.finish();
+			byte[] decoded = HeatShrinkEncoderTest.decodeAll(new HeatShrinkDecoder(p[0], p[1], 1 + rand.nextInt(300)), packed.toByteArray());
+			assertArrayEquals(expected.toByteArray(), decoded);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWriterChecksRange() throws Exception {
+		HeatShrinkTokens tokens = new HeatShrinkTokens(1);
+		tokens.addBackref(1025, 3);
+		new HeatShrinkTokenWriter(10, 5, new ByteArrayOutputStream()).write(tokens);
+	}
+}
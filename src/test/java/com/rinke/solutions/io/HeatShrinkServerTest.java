@@ -0,0 +1,117 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeatShrinkServerTest {
+
+	private HeatShrinkServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new HeatShrinkServer(0);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	private HttpURLConnection open(String path) throws Exception {
+		URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + path);
+		return (HttpURLConnection) url.openConnection();
+	}
+
+	private byte[] post(String path, byte[] body) throws Exception {
+		HttpURLConnection con = open(path);
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.setChunkedStreamingMode(4096);
+		OutputStream os = con.getOutputStream();
+		os.write(body);
+		os.close();
+		assertEquals(200, con.getResponseCode());
+		return read(con.getInputStream());
+	}
+
+	private static byte[] read(InputStream is) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = is.read(buf)) >= 0) {
+			bos.write(buf, 0, n);
+		}
+		is.close();
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		byte[] data = new byte[100000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ((i / 9) % 37);
+		}
+		for (int i = 0; i < 3; i++) {
+			byte[] packed = post("/compress?w=11&l=4", data);
+			assertArrayEquals(HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(11, 4), data), packed);
+			assertArrayEquals(data, post("/decompress?w=11&l=4", packed));
+		}
+		String stats = new String(read(open("/stats").getInputStream()), "UTF-8");
+		assertTrue(stats, stats.contains("requests 6\n"));
+		assertTrue(stats, stats.contains("failures 0\n"));
+		assertTrue(stats, stats.contains("bytes_in " + (3 * data.length + 3 * (long) HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(11, 4), data).length) + "\n"));
+	}
+
+	@Test
+	public void testBadParams() throws Exception {
+		HttpURLConnection con = open("/compress?w=30&l=4");
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.getOutputStream().close();
+		assertEquals(400, con.getResponseCode());
+		assertTrue(server.stats().contains("failures 1\n"));
+	}
+
+	private int status(String path) throws Exception {
+		HttpURLConnection con = open(path);
+		con.setRequestMethod("POST");
+		con.setDoOutput(true);
+		con.getOutputStream().close();
+		int status = con.getResponseCode();
+		read(status == 200 ? con.getInputStream() : con.getErrorStream());
+		return status;
+	}
+
+	@Test
+	public void testMaxWindow() throws Exception {
+		assertEquals(400, status("/compress?x=1&w=16&l=4"));
+		server.maxWindow = 16;
+		assertEquals(200, status("/compress?x=1&w=16&l=4"));
+	}
+
+	@Test
+	public void testMemoryLimit() throws Exception {
+		server.maxWindow = 24;
+		server.memory = 2;
+		assertEquals(503, status("/compress?x=1&w=20&l=4"));
+		assertEquals(200, status("/compress?x=1&w=17&l=4"));
+		String stats = server.stats();
+		assertTrue(stats, stats.contains("codec_bytes " + HeatShrinkServer.encoderFootprint(17) + "\n"));
+		// the idle encoder is dropped to make room
+		assertEquals(200, status("/decompress?x=1&w=20&l=4"));
+		stats = server.stats();
+		assertTrue(stats, stats.contains("codec_bytes " + HeatShrinkServer.decoderFootprint(20) + "\n"));
+		assertTrue(stats, stats.contains("failures 1\n"));
+	}
+
+}
@@ -2,6 +2,9 @@ package com.rinke.solutions.io;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -34,6 +37,58 @@ public class HeatShrinkTest {
 		HeatShrink.main(new String[]{"-d", outFile.getPath(), decFile.getPath()});
 	}
 	
+	@Test
+	public void testCallFramed() throws Exception {
+		HeatShrink.main(new String[]{"-e", "-f", inFile.getPath(), outFile.getPath()});
+		HeatShrink.main(new String[]{"-d", "-f", outFile.getPath(), decFile.getPath()});
+		assertEquals(inFile.length(), decFile.length());
+	}
+	
+	@Test
+	public void testCallHeader() throws Exception {
+		HeatShrink.main(new String[]{"-e", "-H", "-w", "12", "-l", "6", inFile.getPath(), outFile.getPath()});
+		HeatShrink.main(new String[]{"-d", "-H", outFile.getPath(), decFile.getPath()});
+		assertArrayEquals(Files.readAllBytes(inFile.toPath()), Files.readAllBytes(decFile.toPath()));
+		assertArrayEquals(new byte[512], HeatShrinkHeader.decompress(Files.readAllBytes(outFile.toPath())));
+	}
+	
+	@Test
+	public void testCallParallel() throws Exception {
+		HeatShrink.main(new String[]{"-e", "-p", "-j", "2", inFile.getPath(), outFile.getPath()});
+		HeatShrink.main(new String[]{"-d", outFile.getPath(), decFile.getPath()});
+		assertArrayEquals(Files.readAllBytes(inFile.toPath()), Files.readAllBytes(decFile.toPath()));
+	}
+	
+	@Test
+	public void testRecursive() throws Exception {
+		File root = folder.newFolder("tree");
+		File sub = new File(root, "a/b");
+		sub.mkdirs();
+		byte[] data = new byte[3000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i % 17);
+		}
+		for (int i = 0; i < 5; i++) {
+			write(new File(i % 2 == 0 ? root : sub, "f" + i), data);
+		}
+		File packed = folder.newFolder("packed");
+		File unpacked = folder.newFolder("unpacked");
+		HeatShrink.main(new String[]{"-e", "-r", "-q", "-j", "3", "-w", "8", "-l", "4", "-o", packed.getPath(), root.getPath()});
+		assertTrue(new File(packed, "a/b/f1" + HeatShrink.SUFFIX).isFile());
+		assertTrue(new File(packed, "f4" + HeatShrink.SUFFIX).length() < data.length);
+		HeatShrink.main(new String[]{"-d", "-r", "-q", "-w", "8", "-l", "4", "-o", unpacked.getPath(), packed.getPath()});
+		for (int i = 0; i < 5; i++) {
+			File f = new File(i % 2 == 0 ? unpacked : new File(unpacked, "a/b"), "f" + i);
+			assertArrayEquals(data, Files.readAllBytes(f.toPath()));
+		}
+	}
+
+	private void write(File f, byte[] data) throws Exception {
+		FileOutputStream os = new FileOutputStream(f);
+		os.write(data);
+		os.close();
+	}
+	
 	@Test
 	public void testEncodeDecode() throws Exception {
 		HeatShrink.encode(new String[]{inFile.getPath(), outFile.getPath()});
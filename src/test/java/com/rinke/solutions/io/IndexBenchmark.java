@@ -0,0 +1,45 @@
+package com.rinke.solutions.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * compares encoding speed of the compact 16 bit search index with the int
+ * index. Not a unit test, run the main method.
+ */
+public class IndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		byte[] data = new byte[2 << 20];
+		Random rand = new Random(1);
+		for (int i = 0; i < data.length; i++) {
+			// text like data with a skewed distribution
+			data[i] = (byte) ('a' + Math.min(25, (int) Math.abs(rand.nextGaussian() * 6)));
+		}
+		for (int windowSize = 10; windowSize <= 15; windowSize++) {
+			for (int round = 0; round < 3; round++) {
+				long full = run(new HeatShrinkEncoder(windowSize, 4, false), data);
+				long compact = run(new HeatShrinkEncoder(windowSize, 4, true), data);
+				if (round == 2) {
+					System.out.printf("window %2d: int index %6.1f MB/s, compact index %6.1f MB/s, footprint %d / %d bytes%n",
+							windowSize, mbs(data, full), mbs(data, compact),
+							new HeatShrinkEncoder(windowSize, 4, false).getHeapFootprint(),
+							new HeatShrinkEncoder(windowSize, 4, true).getHeapFootprint());
+				}
+			}
+		}
+	}
+
+	private static double mbs(byte[] data, long nanos) {
+		return data.length / 1e6 / (nanos / 1e9);
+	}
+
+	private static long run(HeatShrinkEncoder encoder, byte[] data) throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream(data.length);
+		long start = System.nanoTime();
+		encoder.encode(new ByteArrayInputStream(data), os);
+		return System.nanoTime() - start;
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.rinke.solutions.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeatShrinkSegmentsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] data(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ((i / 7) % 23);
+		}
+		return data;
+	}
+
+	@Test
+	public void testOffHeapRoundTrip() throws Exception {
+		byte[] data = data(300000);
+		try (Arena arena = Arena.ofConfined()) {
+			MemorySegment src = arena.allocate(data.length);
+			MemorySegment.copy(data, 0, src, ValueLayout.JAVA_BYTE, 0, data.length);
+			MemorySegment compressed = HeatShrinkSegments.compress(src, arena, 10, 5);
+			assertTrue(compressed.byteSize() < data.length / 2);
+			MemorySegment dst = arena.allocate(data.length);
+			assertEquals(data.length, HeatShrinkSegments.decompress(compressed, dst, 10, 5));
+			assertArrayEquals(data, dst.toArray(ValueLayout.JAVA_BYTE));
+		}
+	}
+
+	@Test
+	public void testSameOutputAsByteArrays() throws Exception {
+		byte[] data = data(50000);
+		byte[] expected = HeatShrinkEncoderTest.encodeAll(new HeatShrinkEncoder(8, 4), data);
+		MemorySegment dst = MemorySegment.ofArray(new byte[(int) HeatShrinkSegments.maxCompressedSize(data.length)]);
+		long n = HeatShrinkSegments.compress(MemorySegment.ofArray(data), dst, 8, 4);
+		assertArrayEquals(expected, dst.asSlice(0, n).toArray(ValueLayout.JAVA_BYTE));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testDestinationTooSmall() throws Exception {
+		byte[] data = data(5000);
+		HeatShrinkSegments.compress(MemorySegment.ofArray(data), MemorySegment.ofArray(new byte[10]), 8, 4);
+	}
+
+	@Test
+	public void testMappedFiles() throws Exception {
+		byte[] data = data(200000);
+		File in = folder.newFile("in");
+		File packed = folder.newFile("packed");
+		File out = folder.newFile("out");
+		Files.write(in.toPath(), data);
+		long n = HeatShrinkSegments.compress(in.toPath(), packed.toPath(), 10, 5);
+		assertEquals(n, packed.length());
+		assertEquals(data.length, HeatShrinkSegments.decompress(packed.toPath(), out.toPath(), 10, 5));
+		assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+	}
+
+}